@@ -0,0 +1,88 @@
+package com.identityservice.service;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.identityservice.dto.User;
+
+/*
+ * Throughput of single UserServiceImpl operations on a random user of the
+ * store. Threads are chosen with -t, e.g. -t 1, -t 8, -t 64.
+ * 
+ * Writes keep the store at its size: saveUser and updateUser replace an
+ * existing user, and deleteUserById puts the deleted user back, so it costs
+ * a delete plus a saveUser.
+ * 
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="UserStoreBenchmark -p storeSize=1000,100000 -t 8"
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserStoreBenchmark {
+
+	@State(Scope.Thread)
+	public static class Keys {
+		private final SplittableRandom random = new SplittableRandom(ThreadLocalRandom.current().nextLong());
+
+		int next(UserStoreState store) {
+			return random.nextInt(store.storeSize);
+		}
+	}
+
+	@Benchmark
+	public User findByUserName(UserStoreState store, Keys keys) {
+		return store.service.findByUserName(store.userNames[keys.next(store)]);
+	}
+
+	@Benchmark
+	public User findById(UserStoreState store, Keys keys) {
+		return store.service.findById(store.ids[keys.next(store)]);
+	}
+
+	/** Materializes every user, so expect it to scale with storeSize. */
+	@Benchmark
+	public List<User> findAllUsers(UserStoreState store) {
+		return store.service.findAllUsers();
+	}
+
+	@Benchmark
+	public void saveUser(UserStoreState store, Keys keys) {
+		int i = keys.next(store);
+		User user = store.newUser(i);
+		user.setId(store.ids[i]);
+		store.service.saveUser(user);
+	}
+
+	@Benchmark
+	public void updateUser(UserStoreState store, Keys keys) {
+		int i = keys.next(store);
+		User user = store.newUser(i);
+		user.setId(store.ids[i]);
+		user.setLastName("Updated");
+		store.service.updateUser(user);
+	}
+
+	@Benchmark
+	public void deleteUserById(UserStoreState store, Keys keys) {
+		int i = keys.next(store);
+		store.service.deleteUserById(store.ids[i]);
+		User user = store.newUser(i);
+		user.setId(store.ids[i]);
+		store.service.saveUser(user);
+	}
+}
@@ -0,0 +1,78 @@
+package com.identityservice.service;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.identityservice.dto.User;
+
+/*
+ * Read/write mixes on random users: each operation is a findByUserName with
+ * probability readPercent and an updateUser otherwise, at 1 to 64 threads.
+ * 
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="UserStoreMixBenchmark -p storeSize=100000 -p readPercent=90"
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserStoreMixBenchmark {
+
+	@State(Scope.Thread)
+	public static class Mix {
+		@Param({ "100", "95", "90", "75", "50" })
+		public int readPercent;
+
+		private final SplittableRandom random = new SplittableRandom(ThreadLocalRandom.current().nextLong());
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object threads01(UserStoreState store, Mix mix) {
+		return operation(store, mix);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object threads04(UserStoreState store, Mix mix) {
+		return operation(store, mix);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public Object threads16(UserStoreState store, Mix mix) {
+		return operation(store, mix);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public Object threads64(UserStoreState store, Mix mix) {
+		return operation(store, mix);
+	}
+
+	private static Object operation(UserStoreState store, Mix mix) {
+		int i = mix.random.nextInt(store.storeSize);
+		if (mix.random.nextInt(100) < mix.readPercent)
+			return store.service.findByUserName(store.userNames[i]);
+
+		User user = store.newUser(i);
+		user.setId(store.ids[i]);
+		user.setLastName("Updated");
+		store.service.updateUser(user);
+		return user;
+	}
+}
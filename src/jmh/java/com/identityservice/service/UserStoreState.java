@@ -0,0 +1,83 @@
+package com.identityservice.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.identityservice.dto.User;
+import com.identityservice.metrics.MetricsRegistry;
+import com.identityservice.persistence.InMemoryIdLeaseStore;
+import com.identityservice.persistence.NoOpUserJournal;
+
+/*
+ * A UserServiceImpl built by hand, without Spring and its security proxies,
+ * holding storeSize users named user0 .. user<storeSize - 1>.
+ * 
+ * The journal is a no-op, so the numbers are for the in-memory store and its
+ * locking alone. The largest sizes need a large heap, e.g.
+ * -jvmArgsAppend -Xmx16g for 10M users.
+ * 
+ */
+@State(Scope.Benchmark)
+public class UserStoreState {
+
+	private static final int LOAD_BATCH = 10000;
+
+	@Param({ "1000", "100000", "1000000", "10000000" })
+	public int storeSize;
+
+	/** identityservice.store.concurrency */
+	@Param({ "global", "striped" })
+	public String concurrency;
+
+	UserServiceImpl service;
+	LookupExecutor lookupExecutor;
+	String[] userNames;
+	long[] ids;
+
+	@Setup(Level.Trial)
+	public void load() {
+		lookupExecutor = new LookupExecutor(1, 1);
+		service = new UserServiceImpl(concurrency, new NoOpUserJournal(), lookupExecutor, new ObjectMapper(),
+				new IdAllocator(new InMemoryIdLeaseStore(), 1000), new MetricsRegistry(), 100_000);
+		service.deleteAllUsers();
+
+		userNames = new String[storeSize];
+		ids = new long[storeSize];
+		List<User> batch = new ArrayList<>(LOAD_BATCH);
+		for (int i = 0; i < storeSize; i++) {
+			userNames[i] = "user" + i;
+			batch.add(newUser(i));
+			if (batch.size() == LOAD_BATCH || i == storeSize - 1) {
+				service.saveNewUsers(batch);
+				int first = i + 1 - batch.size();
+				for (int j = 0; j < batch.size(); j++)
+					ids[first + j] = batch.get(j).getId();
+				batch.clear();
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void clear() {
+		service.deleteAllUsers();
+		lookupExecutor.shutdown();
+	}
+
+	/**
+	 * @param i
+	 * @return a fresh copy of user i as it was loaded, without id
+	 */
+	User newUser(int i) {
+		User user = new User("First" + i, "Last" + i, userNames[i], "{noop}password" + i);
+		user.setEmail(userNames[i] + "@example.com");
+		return user;
+	}
+}
@@ -0,0 +1,80 @@
+package com.identityservice.audit;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/*
+ * Publishes an ACCESS event for every request once its response status is known.
+ *
+ * Sits in the security filter chain right after the security context is set
+ * up, so it sees requests rejected by authentication as well as the caller of
+ * authenticated ones. Async requests are recorded when they complete.
+ *
+ */
+public class AccessLogFilter extends OncePerRequestFilter {
+
+	private final AuditLog auditLog;
+
+	public AccessLogFilter(AuditLog auditLog) {
+		this.auditLog = auditLog;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			filterChain.doFilter(request, response);
+			failed = false;
+		} finally {
+			String actor = actor();
+			String method = request.getMethod();
+			String uri = request.getRequestURI();
+			if (request.isAsyncStarted())
+				request.getAsyncContext().addListener(new AsyncListener() {
+					@Override
+					public void onComplete(AsyncEvent event) {
+						auditLog.access(actor, method, uri, response.getStatus(), micros(start));
+					}
+
+					@Override
+					public void onTimeout(AsyncEvent event) {
+					}
+
+					@Override
+					public void onError(AsyncEvent event) {
+					}
+
+					@Override
+					public void onStartAsync(AsyncEvent event) {
+					}
+				});
+			else
+				auditLog.access(actor, method, uri,
+						failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus(), micros(start));
+		}
+	}
+
+	private static long micros(long start) {
+		return (System.nanoTime() - start) / 1000L;
+	}
+
+	private static String actor() {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (authentication == null || authentication instanceof AnonymousAuthenticationToken)
+			return null;
+		return authentication.getName();
+	}
+}
@@ -0,0 +1,19 @@
+package com.identityservice.audit;
+
+/*
+ * What an audit event records.
+ * 
+ */
+public enum AuditAction {
+	/** A request was served; target is the request URI, value its duration in microseconds. */
+	ACCESS,
+	/** value is the id of the created user. */
+	USER_CREATED,
+	/** value is the id of the updated user. */
+	USER_UPDATED,
+	/** value is the id of the deleted user. */
+	USER_DELETED,
+	ALL_USERS_DELETED,
+	/** Written by the consumer itself; value is the number of events dropped since the last one. */
+	EVENTS_DROPPED
+}
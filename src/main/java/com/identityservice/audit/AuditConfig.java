@@ -0,0 +1,35 @@
+package com.identityservice.audit;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/*
+ * Wires the audit log from identityservice.audit.* properties.
+ * 
+ */
+@Configuration
+public class AuditConfig {
+
+	/** Defaults to writing the audit log exactly when the store is persisted. */
+	@Value("${identityservice.audit.enabled:${identityservice.persistence.enabled:false}}")
+	private boolean enabled;
+
+	/** File the events are appended to. */
+	@Value("${identityservice.audit.file:${identityservice.persistence.data-dir:data}/audit.log}")
+	private String file;
+
+	/** Events waiting to be written beyond this many are dropped. */
+	@Value("${identityservice.audit.buffer-size:8192}")
+	private int bufferSize;
+
+	@Bean(destroyMethod = "close")
+	public AuditLog auditLog() throws IOException {
+		if (!enabled)
+			return new NoOpAuditLog();
+		return RingBufferAuditLog.open(Paths.get(file), bufferSize);
+	}
+}
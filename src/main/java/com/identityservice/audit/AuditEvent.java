@@ -0,0 +1,32 @@
+package com.identityservice.audit;
+
+/*
+ * One slot of the audit ring buffer. Slots are allocated once and overwritten
+ * in place, so publishing an event allocates nothing; every event has the same
+ * shape whatever its action.
+ * 
+ */
+final class AuditEvent {
+
+	/** Sequence of the event currently held, set last by the publisher; -1 until first used. */
+	volatile long sequence = -1L;
+
+	long timestampMillis;
+	AuditAction action;
+	String actor;
+	String method;
+	String target;
+	int status;
+	long value;
+
+	void set(long timestampMillis, AuditAction action, String actor, String method, String target, int status,
+			long value) {
+		this.timestampMillis = timestampMillis;
+		this.action = action;
+		this.actor = actor;
+		this.method = method;
+		this.target = target;
+		this.status = status;
+		this.value = value;
+	}
+}
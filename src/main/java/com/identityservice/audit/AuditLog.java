@@ -0,0 +1,47 @@
+package com.identityservice.audit;
+
+import java.io.Closeable;
+
+/*
+ * Audit trail of user store mutations and access log of served requests.
+ * 
+ * Publishing never blocks the caller: an event that cannot be taken right away
+ * is dropped and counted.
+ * 
+ */
+public interface AuditLog extends Closeable {
+
+	/**
+	 * @param action
+	 * @param actor   userName of the authenticated caller, or null
+	 * @param method  HTTP method, or null
+	 * @param target  userName or request URI the event is about, or null
+	 * @param status  HTTP status, or 0
+	 * @param value   meaning depends on action
+	 * @return false if the event was dropped
+	 */
+	boolean publish(AuditAction action, String actor, String method, String target, int status, long value);
+
+	/**
+	 * @param action
+	 * @param actor
+	 * @param userName
+	 * @param id
+	 * @return false if the event was dropped
+	 */
+	default boolean audit(AuditAction action, String actor, String userName, long id) {
+		return publish(action, actor, null, userName, 0, id);
+	}
+
+	/**
+	 * @param actor
+	 * @param method
+	 * @param uri
+	 * @param status
+	 * @param micros time taken to serve the request
+	 * @return false if the event was dropped
+	 */
+	default boolean access(String actor, String method, String uri, int status, long micros) {
+		return publish(AuditAction.ACCESS, actor, method, uri, status, micros);
+	}
+}
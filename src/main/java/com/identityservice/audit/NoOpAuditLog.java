@@ -0,0 +1,17 @@
+package com.identityservice.audit;
+
+/*
+ * Audit log used when auditing is disabled: every event is discarded.
+ * 
+ */
+public class NoOpAuditLog implements AuditLog {
+
+	@Override
+	public boolean publish(AuditAction action, String actor, String method, String target, int status, long value) {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,249 @@
+package com.identityservice.audit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/*
+ * Audit log backed by a preallocated ring of AuditEvent slots and a single
+ * consumer thread that appends them to a file.
+ *
+ * A publisher claims the next sequence with a CAS, fills the slot and then
+ * publishes it by writing the slot's sequence. When the ring is full the event
+ * is dropped and counted instead of waiting for the consumer; the consumer
+ * records the gap as an EVENTS_DROPPED line.
+ *
+ * The consumer formats every published event into one tab-separated line:
+ * 	timestamp action actor method target status value
+ * and writes them in batches of up to MAX_BATCH events. It polls while idle,
+ * so publishers never have to wake it. Lines are not fsynced until close.
+ *
+ */
+@ManagedResource(objectName = "com.identityservice:type=AuditLog", description = "Audit and access event pipeline")
+public final class RingBufferAuditLog implements AuditLog {
+
+	public static final Logger logger = LoggerFactory.getLogger(RingBufferAuditLog.class);
+
+	private static final int MAX_BATCH = 1024;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+	private static final long DROP_WARNING_INTERVAL_MILLIS = 10000L;
+
+	private final AuditEvent[] slots;
+	private final int mask;
+	private final AtomicLong claimed = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	private final FileChannel channel;
+	private final Thread consumer;
+
+	/** Next sequence to be written; advanced only by the consumer, after it is done with the slots. */
+	private volatile long consumed;
+	private volatile long written;
+	private volatile boolean running = true;
+
+	/** Owned by the consumer thread. */
+	private final StringBuilder lines = new StringBuilder(MAX_BATCH * 96);
+	private long droppedReported;
+	private long lastDropWarning;
+
+	RingBufferAuditLog(FileChannel channel, int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.slots = new AuditEvent[size];
+		for (int i = 0; i < size; i++)
+			slots[i] = new AuditEvent();
+		this.mask = size - 1;
+		this.channel = channel;
+		this.consumer = new Thread(this::consumeLoop, "identity-audit-writer");
+		this.consumer.setDaemon(true);
+	}
+
+	/**
+	 * Opens file for appending and starts the consumer thread.
+	 *
+	 * @param file
+	 * @param capacity number of events the ring holds, rounded up to a power of two
+	 * @return audit log
+	 * @throws IOException
+	 */
+	public static RingBufferAuditLog open(Path file, int capacity) throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		if (directory != null)
+			Files.createDirectories(directory);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		RingBufferAuditLog log = new RingBufferAuditLog(channel, capacity);
+		log.start();
+		logger.info("Writing audit events to {} (buffer of {} events)", file, log.slots.length);
+		return log;
+	}
+
+	void start() {
+		consumer.start();
+	}
+
+	@Override
+	public boolean publish(AuditAction action, String actor, String method, String target, int status, long value) {
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - consumed >= slots.length || !running) {
+				dropped.increment();
+				return false;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		AuditEvent event = slots[(int) sequence & mask];
+		event.set(System.currentTimeMillis(), action, actor, method, target, status, value);
+		event.sequence = sequence;
+		return true;
+	}
+
+	/**
+	 * Stops accepting events, writes the ones already published and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		try {
+			consumer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.force(true);
+		channel.close();
+	}
+
+	@ManagedAttribute(description = "Events the ring buffer holds")
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	@ManagedAttribute(description = "Events published and not yet written")
+	public long getBacklog() {
+		return claimed.get() - consumed;
+	}
+
+	@ManagedAttribute(description = "Events written since startup")
+	public long getWritten() {
+		return written;
+	}
+
+	@ManagedAttribute(description = "Events dropped because the buffer was full")
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	private void consumeLoop() {
+		while (true) {
+			// Read before draining, so that nothing published before close() is left behind.
+			boolean stopping = !running;
+			try {
+				int batch = drain();
+				reportDrops();
+				if (lines.length() > 0) {
+					write();
+					written += batch;
+				}
+				if (stopping && claimed.get() == consumed)
+					return;
+				if (batch == 0)
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+			} catch (IOException e) {
+				logger.error("Could not write audit events, dropping them", e);
+				lines.setLength(0);
+				if (stopping)
+					return;
+			}
+		}
+	}
+
+	/*
+	 * Formats up to MAX_BATCH published events and frees their slots.
+	 */
+	private int drain() {
+		long next = consumed;
+		int count = 0;
+		while (count < MAX_BATCH) {
+			AuditEvent event = slots[(int) next & mask];
+			if (event.sequence != next)
+				break;
+			append(event.timestampMillis, event.action, event.actor, event.method, event.target, event.status,
+					event.value);
+			event.actor = null;
+			event.target = null;
+			next++;
+			count++;
+		}
+		consumed = next;
+		return count;
+	}
+
+	private void reportDrops() {
+		long total = dropped.sum();
+		if (total == droppedReported)
+			return;
+		append(System.currentTimeMillis(), AuditAction.EVENTS_DROPPED, null, null, null, 0, total - droppedReported);
+		long now = System.currentTimeMillis();
+		if (now - lastDropWarning >= DROP_WARNING_INTERVAL_MILLIS) {
+			logger.warn("Audit buffer full, {} events dropped since startup", total);
+			lastDropWarning = now;
+		}
+		droppedReported = total;
+	}
+
+	private void append(long timestampMillis, AuditAction action, String actor, String method, String target,
+			int status, long value) {
+		DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(timestampMillis), lines);
+		lines.append('\t').append(action.name()).append('\t');
+		appendField(actor);
+		lines.append('\t');
+		appendField(method);
+		lines.append('\t');
+		appendField(target);
+		lines.append('\t').append(status).append('\t').append(value).append('\n');
+	}
+
+	/*
+	 * Escapes the separators, so that a userName cannot forge a field or a line.
+	 */
+	private void appendField(String field) {
+		if (field == null) {
+			lines.append('-');
+			return;
+		}
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == '\t')
+				lines.append("\\t");
+			else if (c == '\n')
+				lines.append("\\n");
+			else if (c == '\r')
+				lines.append("\\r");
+			else if (c == '\\')
+				lines.append("\\\\");
+			else
+				lines.append(c);
+		}
+	}
+
+	private void write() throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+		lines.setLength(0);
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+}
@@ -21,7 +21,7 @@ public class InfoController {
 		Authentication authentication = (Authentication) principal;
 		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
 				.getPrincipal();
-		logger.info("POST/info requesting user: " + reqUser.toString());
+		logger.info("POST/info requesting user: {}", reqUser);
 		
 		return String.format("Hello %s! \nI am:\n {'name': 'Simple User Identity Service', 'version': '1.0'}\n", reqUser.getUsername());
 	}
@@ -0,0 +1,47 @@
+package com.identityservice.controller;
+
+import java.security.Principal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.identityservice.metrics.MetricsRegistry;
+
+/*
+ * Endpoint latencies, store lock wait and hold times and pool gauges in the
+ * Prometheus text format, for admins only.
+ * 
+ * curl -v http://localhost:8080/api/admin/metrics -u 'admin:admin'
+ * 
+ */
+@RestController
+@RequestMapping("/api")
+public class MetricsController {
+
+	public static final Logger logger = LoggerFactory.getLogger(MetricsController.class);
+
+	@Autowired
+	private MetricsRegistry metricsRegistry;
+
+	/**
+	 * metrics
+	 * 
+	 * @param principal
+	 * @return every metric, latencies in seconds
+	 */
+	@RequestMapping(value = "/admin/metrics", method = RequestMethod.GET)
+	public ResponseEntity<String> metrics(Principal principal) {
+		logger.debug("GET/metrics requesting user: {}", principal.getName());
+
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_TYPE, MetricsRegistry.CONTENT_TYPE);
+		return new ResponseEntity<String>(metricsRegistry.scrape(), headers, HttpStatus.OK);
+	}
+}
@@ -0,0 +1,60 @@
+package com.identityservice.controller;
+
+import java.security.Principal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.identityservice.dto.AccessToken;
+import com.identityservice.security.AccessTokenService;
+
+/*
+ * Exchanges Basic credentials for a short-lived bearer token.
+ * 
+ * Get a token:
+ * curl -v -X POST http://localhost:8080/api/token -u 'john:doe'
+ * 
+ * Use it:
+ * curl -v http://localhost:8080/api/user/zoe -H "Authorization: Bearer <access_token>"
+ * 
+ */
+@RestController
+@RequestMapping("/api")
+public class TokenController {
+
+	public static final Logger logger = LoggerFactory.getLogger(TokenController.class);
+
+	@Autowired
+	private AccessTokenService accessTokenService;
+
+	/**
+	 * issueToken
+	 * 	- only Basic credentials are accepted, so a token cannot renew itself.
+	 * 
+	 * @param principal
+	 * @return token
+	 */
+	@RequestMapping(value = "/token", method = RequestMethod.POST, produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<AccessToken> issueToken(Principal principal) {
+		Authentication authentication = (Authentication) principal;
+		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
+				.getPrincipal();
+		logger.debug("POST/issueToken requesting user: {}", reqUser);
+
+		if (!(authentication instanceof UsernamePasswordAuthenticationToken)) {
+			logger.debug("Token requested with a token by {}.", reqUser.getUsername());
+			return new ResponseEntity<AccessToken>(HttpStatus.FORBIDDEN);
+		}
+		AccessToken token = new AccessToken(accessTokenService.issue(authentication), accessTokenService.getTtlSeconds());
+		return new ResponseEntity<AccessToken>(token, HttpStatus.OK);
+	}
+}
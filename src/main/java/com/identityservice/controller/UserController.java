@@ -1,13 +1,28 @@
 package com.identityservice.controller;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
+import javax.validation.Validator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,16 +32,32 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.provisioning.InMemoryUserDetailsManager;
+import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.identityservice.audit.AuditAction;
+import com.identityservice.audit.AuditLog;
+import com.identityservice.dto.BulkImportRecordResult;
+import com.identityservice.dto.BulkImportRecordResult.Outcome;
+import com.identityservice.dto.BulkImportResult;
 import com.identityservice.dto.User;
-import com.identityservice.dto.Status;
+import com.identityservice.dto.UserField;
+import com.identityservice.dto.UserLookupResult;
+import com.identityservice.exception.UserVersionConflictException;
+import com.identityservice.security.AccessTokenService;
+import com.identityservice.security.AuthenticationCache;
+import com.identityservice.security.PasswordHashing;
 import com.identityservice.service.UserService;
 
 /*
@@ -43,6 +74,10 @@ import com.identityservice.service.UserService;
  * curl -v http://localhost:8080/api/user/zoe -H
  * "Content-Type: application/json" -u 'john:doe'
  * 
+ * Bulk import users, one JSON user per line:
+ * curl -v -u 'admin:admin' http://localhost:8080/api/admin/user/_bulk -H
+ * "Content-Type: application/x-ndjson" -X POST --data-binary @users.ndjson
+ * 
  * Asynchronous get user:
  * curl -v http://localhost:8080/api/async/user/zoe -H
  * "Content-Type: application/json" -u 'john:doe'
@@ -54,18 +89,40 @@ public class UserController {
 
 	public static final Logger logger = LoggerFactory.getLogger(UserController.class);
 	private static final long ASYNC_TIMEOUT_SECS = 10L;
+	private static final int MAX_PAGE_SIZE = 1000;
+	private static final int STREAM_PAGE_SIZE = 500;
+	private static final String STREAM_NDJSON = "ndjson";
+	private static final String STREAM_ARRAY = "array";
+	private static final int IMPORT_BATCH_SIZE = 1000;
+	private static final int MAX_UPDATE_ATTEMPTS = 10;
+	public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+	public static final MediaType APPLICATION_NDJSON = MediaType.valueOf(APPLICATION_NDJSON_VALUE);
 
 	@Autowired
 	UserService userService;
 
 	@Autowired
-	private InMemoryUserDetailsManager inMemoryUserDetailsManager;
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private Validator validator;
+
+	@Autowired
+	private AuthenticationCache authenticationCache;
+
+	@Autowired
+	private AccessTokenService accessTokenService;
+
+	@Autowired
+	private PasswordHashing passwordHashing;
+
+	@Autowired
+	private AuditLog auditLog;
 
 
 	/**
 	 * createUser
-	 * 	- save user in cache/db
-	 *  - adds user info (username, password, role) into inMemoryUserDetailsManager
+	 * 	- save user in cache/db with a hashed password, which also makes its credentials usable
 	 * 
 	 * @param principal
 	 * @param user
@@ -78,118 +135,494 @@ public class UserController {
 		Authentication authentication = (Authentication) principal;
 		org.springframework.security.core.userdetails.User adminUser = (org.springframework.security.core.userdetails.User) authentication
 				.getPrincipal();
-		logger.debug("POST/createUser requesting user: " + adminUser.toString());
-		logger.debug("POST User " + user.getUserName());
+		logger.debug("POST/createUser requesting user: {}", adminUser);
+		logger.debug("POST User {}", user.getUserName());
 
 		if (userService.isUserExist(user)) {
-			logger.debug("User with username " + user.getUserName() + " already exists.");
+			logger.debug("User with username {} already exists.", user.getUserName());
 			return new ResponseEntity<Void>(HttpStatus.CONFLICT);
 		}
 
+		user.setId(null);
+		user.setPassword(passwordHashing.encode(user.getPassword()));
 		userService.saveUser(user);
-		inMemoryUserDetailsManager.createUser(org.springframework.security.core.userdetails.User
-				.withUsername(user.getUserName()).password(user.getPassword()).authorities("ROLE_USER").build());
+		auditLog.audit(AuditAction.USER_CREATED, adminUser.getUsername(), user.getUserName(), user.getId());
 
 		HttpHeaders headers = new HttpHeaders();
 		headers.setLocation(uriComponentsBuilder.path("/api/user/{userName}").buildAndExpand(user.getUserName()).toUri());
 		return new ResponseEntity<Void>(headers, HttpStatus.CREATED);
 	}
 
+	/**
+	 * importUsers
+	 * 	- reads the body line by line, one JSON user per line, without buffering it.
+	 * 	- every IMPORT_BATCH_SIZE lines are parsed and validated in parallel, then
+	 * 	  the valid users are saved with one store lock acquisition.
+	 * 	- a bad line or an existing userName only fails that line.
+	 * 
+	 * @param principal
+	 * @param body
+	 * @return outcome of every line
+	 * @throws IOException
+	 */
+	@RequestMapping(value = "/admin/user/_bulk", method = RequestMethod.POST, consumes = { APPLICATION_NDJSON_VALUE },
+			produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<BulkImportResult> importUsers(Principal principal, InputStream body) throws IOException {
+		Authentication authentication = (Authentication) principal;
+		org.springframework.security.core.userdetails.User adminUser = (org.springframework.security.core.userdetails.User) authentication
+				.getPrincipal();
+		logger.debug("POST/importUsers requesting user: {}", adminUser);
+
+		BulkImportResult result = new BulkImportResult();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+		List<ImportLine> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+		int lineNumber = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.trim().isEmpty())
+				continue;
+			batch.add(new ImportLine(lineNumber, line));
+			if (batch.size() == IMPORT_BATCH_SIZE) {
+				importBatch(adminUser.getUsername(), batch, result);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			importBatch(adminUser.getUsername(), batch, result);
+
+		logger.debug("Imported {} of {} users, {} conflicts, {} invalid.", result.getCreated(), result.getTotal(),
+				result.getConflicts(), result.getInvalid());
+		return new ResponseEntity<BulkImportResult>(result, HttpStatus.OK);
+	}
+
+	private void importBatch(String actor, List<ImportLine> batch, BulkImportResult result) {
+		batch.parallelStream().forEach(this::parseAndValidate);
+
+		List<User> valid = new ArrayList<>(batch.size());
+		for (ImportLine line : batch) {
+			if (line.error == null)
+				valid.add(line.user);
+		}
+		List<String> hashes = passwordHashing
+				.encodeAll(valid.stream().map(User::getPassword).collect(Collectors.toList()));
+		for (int i = 0; i < valid.size(); i++)
+			valid.get(i).setPassword(hashes.get(i));
+		List<Boolean> created = valid.isEmpty() ? new ArrayList<>() : userService.saveNewUsers(valid);
+
+		int next = 0;
+		for (ImportLine line : batch) {
+			String userName = line.user == null ? null : line.user.getUserName();
+			if (line.error != null)
+				result.add(new BulkImportRecordResult(line.number, userName, Outcome.INVALID, line.error));
+			else if (created.get(next++)) {
+				result.add(new BulkImportRecordResult(line.number, userName, Outcome.CREATED, null));
+				auditLog.audit(AuditAction.USER_CREATED, actor, userName, line.user.getId());
+			}
+			else
+				result.add(new BulkImportRecordResult(line.number, userName, Outcome.CONFLICT,
+						String.format("User with username %s already exists.", userName)));
+		}
+	}
+
+	private void parseAndValidate(ImportLine line) {
+		try {
+			line.user = objectMapper.readValue(line.json, User.class);
+		} catch (JsonProcessingException e) {
+			line.error = "Malformed JSON: " + e.getOriginalMessage();
+			return;
+		} catch (IOException e) {
+			line.error = "Unreadable line: " + e.getMessage();
+			return;
+		}
+		Set<ConstraintViolation<User>> violations = validator.validate(line.user);
+		if (!violations.isEmpty())
+			line.error = violations.stream().map(ConstraintViolation::getMessage).sorted()
+					.collect(Collectors.joining(", "));
+	}
+
+	/*
+	 * One non-blank line of an import body and what became of it.
+	 */
+	private static final class ImportLine {
+		private final int number;
+		private final String json;
+		private User user;
+		private String error;
+
+		private ImportLine(int number, String json) {
+			this.number = number;
+			this.json = json;
+		}
+	}
+
 	/**
 	 * listAllUsers
+	 * 	- without limit, returns every user ordered by id.
+	 * 	- with limit, returns one keyset page of users with id greater than after,
+	 * 	  and a Link header (rel="next") pointing at the following page.
+	 * 	- either way the response carries an ETag, the store version for the full
+	 * 	  listing and the page's version otherwise; If-None-Match with the
+	 * 	  current one is answered with 304 before any user is read.
+	 * 	- fields selects the properties returned for each user.
 	 * 
 	 * @param principal
+	 * @param after id of the last user of the previous page
+	 * @param limit page size, at most MAX_PAGE_SIZE
+	 * @param fields comma-separated User properties, all by default
+	 * @param ifNoneMatch ETags the client already has
 	 * @return users
 	 */
 	@RequestMapping(value = "/user", method = RequestMethod.GET, produces = { MediaType.APPLICATION_JSON_VALUE })
-	public ResponseEntity<List<User>> listAllUsers(Principal principal) {
+	public ResponseEntity<byte[]> listAllUsers(Principal principal,
+			@RequestParam(value = "after", required = false, defaultValue = "0") long after,
+			@RequestParam(value = "limit", required = false) Integer limit,
+			@RequestParam(value = "fields", required = false) String fields,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+			UriComponentsBuilder uriComponentsBuilder) {
 		Authentication authentication = (Authentication) principal;
 		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
 				.getPrincipal();
-		logger.debug("GET/listAllUsers requesting user: " + reqUser.toString());
+		logger.debug("GET/listAllUsers requesting user: {}", reqUser);
+		Set<UserField> projection = UserField.parse(fields);
 
-		List<User> users = userService.findAllUsers();
-		if (users.isEmpty())
-			return new ResponseEntity<List<User>>(HttpStatus.NO_CONTENT);
+		if (limit == null) {
+			String etag = etag(userService.findStoreVersion());
+			if (matchesAny(ifNoneMatch, etag))
+				return notModified(etag);
 
-		return new ResponseEntity<List<User>>(users, HttpStatus.OK);
+			NavigableMap<Long, byte[]> users = userService.findUsersPageJson(0L, Integer.MAX_VALUE, projection);
+			if (users.isEmpty())
+				return new ResponseEntity<byte[]>(HttpStatus.NO_CONTENT);
+
+			HttpHeaders headers = new HttpHeaders();
+			headers.setETag(etag);
+			return new ResponseEntity<byte[]>(jsonArray(users.values()), headers, HttpStatus.OK);
+		}
+
+		if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+			logger.debug("Invalid page size {}.", limit);
+			return new ResponseEntity<byte[]>(HttpStatus.BAD_REQUEST);
+		}
+
+		String etag = etag(userService.findUsersPageVersion(after, limit));
+		if (matchesAny(ifNoneMatch, etag))
+			return notModified(etag);
+
+		NavigableMap<Long, byte[]> page = userService.findUsersPageJson(after, limit, projection);
+		if (page.isEmpty())
+			return new ResponseEntity<byte[]>(HttpStatus.NO_CONTENT);
+
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag(etag);
+		if (page.size() == limit) {
+			long nextAfter = page.lastKey();
+			UriComponentsBuilder next = uriComponentsBuilder.path("/api/user").queryParam("after", nextAfter)
+					.queryParam("limit", limit);
+			if (projection != null)
+				next.queryParam("fields", fields);
+			headers.add(HttpHeaders.LINK, String.format("<%s>; rel=\"next\"", next.build().toUriString()));
+		}
+		return new ResponseEntity<byte[]>(jsonArray(page.values()), headers, HttpStatus.OK);
+	}
+
+	/*
+	 * Joins the JSON of each user into a JSON array.
+	 */
+	private static byte[] jsonArray(Collection<byte[]> users) {
+		int size = 1 + users.size();
+		for (byte[] json : users)
+			size += json.length;
+		ByteBuffer array = ByteBuffer.allocate(size);
+		array.put((byte) '[');
+		for (byte[] json : users) {
+			if (array.position() > 1)
+				array.put((byte) ',');
+			array.put(json);
+		}
+		array.put((byte) ']');
+		return array.array();
+	}
+
+	/**
+	 * streamAllUsers
+	 * 	- writes every user to the response while paging through the store, so
+	 * 	  memory stays flat regardless of the number of users.
+	 * 	- stream=ndjson or Accept: application/x-ndjson writes one user per line.
+	 * 	- stream=array writes a chunked JSON array.
+	 * 	- fields selects the properties returned for each user.
+	 * 
+	 * @param principal
+	 * @param stream ndjson or array
+	 * @param fields comma-separated User properties, all by default
+	 * @return users
+	 */
+	@RequestMapping(value = "/user", method = RequestMethod.GET, params = "stream")
+	public ResponseEntity<StreamingResponseBody> streamAllUsers(Principal principal, @RequestParam("stream") String stream,
+			@RequestParam(value = "fields", required = false) String fields) {
+		Authentication authentication = (Authentication) principal;
+		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
+				.getPrincipal();
+		logger.debug("GET/streamAllUsers requesting user: {}", reqUser);
+		Set<UserField> projection = UserField.parse(fields);
+
+		if (STREAM_NDJSON.equalsIgnoreCase(stream))
+			return streamUsers(true, projection);
+		if (STREAM_ARRAY.equalsIgnoreCase(stream))
+			return streamUsers(false, projection);
+
+		logger.debug("Unsupported stream format {}.", stream);
+		return new ResponseEntity<StreamingResponseBody>(HttpStatus.BAD_REQUEST);
+	}
+
+	/**
+	 * streamAllUsersNdjson
+	 * 	- same as streamAllUsers with stream=ndjson, selected by the Accept header.
+	 * 
+	 * @param principal
+	 * @param fields comma-separated User properties, all by default
+	 * @return users
+	 */
+	@RequestMapping(value = "/user", method = RequestMethod.GET, produces = { APPLICATION_NDJSON_VALUE })
+	public ResponseEntity<StreamingResponseBody> streamAllUsersNdjson(Principal principal,
+			@RequestParam(value = "fields", required = false) String fields) {
+		return streamAllUsers(principal, STREAM_NDJSON, fields);
+	}
+
+	private ResponseEntity<StreamingResponseBody> streamUsers(boolean ndjson, Set<UserField> fields) {
+		StreamingResponseBody body = out -> {
+			if (!ndjson)
+				out.write('[');
+
+			long after = 0L;
+			boolean first = true;
+			NavigableMap<Long, byte[]> page;
+			do {
+				page = userService.findUsersPageJson(after, STREAM_PAGE_SIZE, fields);
+				for (byte[] json : page.values()) {
+					if (!ndjson && !first)
+						out.write(',');
+					out.write(json);
+					if (ndjson)
+						out.write('\n');
+					first = false;
+				}
+				if (!page.isEmpty())
+					after = page.lastKey();
+				out.flush();
+			} while (page.size() == STREAM_PAGE_SIZE);
+
+			if (!ndjson)
+				out.write(']');
+		};
+		MediaType contentType = ndjson ? APPLICATION_NDJSON : MediaType.APPLICATION_JSON_UTF8;
+		return ResponseEntity.ok().contentType(contentType).body(body);
 	}
 
 	/**
 	 * getUser
+	 * 	- the ETag is the version of the stored user; If-None-Match with the
+	 * 	  current one is answered with 304 without reading the user.
+	 * 	- fields selects the properties returned.
 	 * 
 	 * @param userName
+	 * @param fields comma-separated User properties, all by default
+	 * @param ifNoneMatch ETags the client already has
 	 * @return user
 	 */
 	@RequestMapping(value = "/user/{userName}", method = RequestMethod.GET, produces = { MediaType.APPLICATION_JSON_VALUE })
-	public ResponseEntity<?> getUser(Principal principal, @PathVariable("userName") String userName) {
+	public ResponseEntity<?> getUser(Principal principal, @PathVariable("userName") String userName,
+			@RequestParam(value = "fields", required = false) String fields,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 		Authentication authentication = (Authentication) principal;
 		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
 				.getPrincipal();
-		logger.debug("GET/getUser requesting user: " + reqUser.toString());
+		logger.debug("GET/getUser requesting user: {}", reqUser);
 		logger.debug("GET User with userName {}", userName);
-		
-		User user = userService.findByUserName(userName);
+
+		Set<UserField> projection = UserField.parse(fields);
+
+		long version = userService.findUserVersion(userName);
+		if (version != 0L && matchesAny(ifNoneMatch, etag(version)))
+			return notModified(etag(version));
+
+		byte[] user = userService.findUserJson(userName, projection);
 		if (user == null) {
 			logger.debug("User with userName {} not found.", userName);
 			return new ResponseEntity<Object>(String.format("User with userName %s is not found.", userName),
 					HttpStatus.NOT_FOUND);
 		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag(etag(version));
+		return new ResponseEntity<byte[]>(user, headers, HttpStatus.OK);
+	}
+
+	private static String etag(long version) {
+		return "W/\"" + Long.toHexString(version) + "\"";
+	}
+
+	/*
+	 * Version named by an ETag this controller issued, or null for anything else.
+	 */
+	private static Long versionOf(String etag) {
+		String tag = etag.trim();
+		if (tag.startsWith("W/"))
+			tag = tag.substring(2);
+		if (tag.length() < 3 || tag.charAt(0) != '"' || tag.charAt(tag.length() - 1) != '"')
+			return null;
+		try {
+			return Long.parseUnsignedLong(tag.substring(1, tag.length() - 1), 16);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Weak comparison, as If-None-Match requires: W/ prefixes are ignored and * matches anything.
+	 */
+	private static boolean matchesAny(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+		String opaque = etag.substring(2);
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*") || candidate.equals(opaque)
+					|| (candidate.startsWith("W/") && candidate.substring(2).equals(opaque)))
+				return true;
+		}
+		return false;
+	}
+
+	private static <T> ResponseEntity<T> notModified(String etag) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag(etag);
+		return new ResponseEntity<T>(headers, HttpStatus.NOT_MODIFIED);
+	}
+
+	/**
+	 * getUsers
+	 * 	- resolves a JSON array of userNames in one pass, at most MAX_PAGE_SIZE
+	 * 	  distinct names per request.
+	 * 
+	 * @param principal
+	 * @param userNames
+	 * @return users found, in request order, and the userNames not found
+	 */
+	@RequestMapping(value = "/user/_mget", method = RequestMethod.POST, produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<UserLookupResult> getUsers(Principal principal, @RequestBody List<String> userNames) {
+		Authentication authentication = (Authentication) principal;
+		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
+				.getPrincipal();
+		logger.debug("POST/getUsers requesting user: {}", reqUser);
+
+		Set<String> names = new LinkedHashSet<>(userNames);
+		names.remove(null);
+		if (names.size() > MAX_PAGE_SIZE) {
+			logger.debug("Too many userNames requested: {}.", names.size());
+			return new ResponseEntity<UserLookupResult>(HttpStatus.BAD_REQUEST);
+		}
+
+		Map<String, User> found = userService.findByUserNames(names);
+		List<String> missing = names.stream().filter(n -> !found.containsKey(n)).collect(Collectors.toList());
+		return new ResponseEntity<UserLookupResult>(new UserLookupResult(new ArrayList<>(found.values()), missing),
+				HttpStatus.OK);
+	}
+
+	/**
+	 * getUserById
+	 *
+	 * @param id
+	 * @return user
+	 */
+	@RequestMapping(value = "/user/id/{id}", method = RequestMethod.GET, produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<?> getUserById(Principal principal, @PathVariable("id") long id) {
+		Authentication authentication = (Authentication) principal;
+		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
+				.getPrincipal();
+		logger.debug("GET/getUserById requesting user: {}", reqUser);
+		logger.debug("GET User with id {}", id);
+
+		User user = userService.findById(id);
+		if (user == null) {
+			logger.debug("User with id {} not found.", id);
+			return new ResponseEntity<Object>(String.format("User with id %d is not found.", id),
+					HttpStatus.NOT_FOUND);
+		}
 		return new ResponseEntity<User>(user, HttpStatus.OK);
 	}
 
 	/**
 	 * updateUser
+	 * 	- merges the given fields into a copy of the stored user and installs it
+	 * 	  only if the user did not change meanwhile.
+	 * 	- with If-Match, the update must be based on that ETag's version, else 412.
+	 * 	- without it, a concurrent change makes the merge start over from the
+	 * 	  latest version, up to MAX_UPDATE_ATTEMPTS times.
 	 * 
 	 * @param userName
 	 * @param user
+	 * @param ifMatch ETag of the version the update is based on
 	 * @return updatedUser
 	 */
 	@RequestMapping(value = "/admin/user/{userName}", method = RequestMethod.PUT)
-	public ResponseEntity<?> updateUser(Principal principal, @PathVariable("userName") String userName, @RequestBody User user) {
+	public ResponseEntity<?> updateUser(Principal principal, @PathVariable("userName") String userName,
+			@Validated(User.Limits.class) @RequestBody User user,
+			@RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
 		Authentication authentication = (Authentication) principal;
 		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
 				.getPrincipal();
-		logger.debug("PUT/updateUser requesting user: " + reqUser.toString());
+		logger.debug("PUT/updateUser requesting user: {}", reqUser);
 		logger.debug("PUT User with userName {}", userName);
 
-		User currentUser = userService.findByUserName(userName);
-
-		if (currentUser == null) {
-			logger.debug("Unable to update. User with userName {} not found.", userName);
-			return new ResponseEntity<Object>(
-					String.format("Unable to upate. User with userName %s is not found.", userName),
-					HttpStatus.NOT_FOUND);
+		Long expectedVersion = null;
+		if (ifMatch != null && !ifMatch.trim().equals("*")) {
+			expectedVersion = versionOf(ifMatch);
+			if (expectedVersion == null)
+				throw new UserVersionConflictException(userName, 0L);
 		}
+		String password = user.getPassword() == null ? null : passwordHashing.encode(user.getPassword());
 
-		if (user.getFirstName() != null)
-			currentUser.setFirstName(user.getFirstName());
-		
-		if (user.getLastName() != null)
-			currentUser.setLastName(user.getLastName());
+		for (int attempt = 1;; attempt++) {
+			User currentUser = userService.findByUserName(userName);
 
-		if (user.getEmail() != null)
-			currentUser.setEmail(user.getEmail());
-		
-		if (user.getPassword() != null)
-			currentUser.setPassword(user.getPassword());
-		
-		if (user.getStatus() != null) {
-			currentUser.setStatus(user.getStatus());
-			
-			// Based on Status: Remove user's access if deactivated OR Activate user's access if it doesn't exist.
-			if (currentUser.getStatus().equals(Status.INACTIVE))
-				inMemoryUserDetailsManager.deleteUser(currentUser.getUserName());
-			else if (user.getStatus().equals(Status.ACTIVE)) {
-				if (!inMemoryUserDetailsManager.userExists(currentUser.getUserName())) {
-						inMemoryUserDetailsManager.createUser(org.springframework.security.core.userdetails.User
-								.withUsername(currentUser.getUserName()).password(currentUser.getPassword()).authorities("ROLE_USER").build());
-				}
+			if (currentUser == null) {
+				logger.debug("Unable to update. User with userName {} not found.", userName);
+				return new ResponseEntity<Object>(
+						String.format("Unable to upate. User with userName %s is not found.", userName),
+						HttpStatus.NOT_FOUND);
 			}
-		}
+			long baseVersion = expectedVersion != null ? expectedVersion : currentUser.getVersion();
 
-		userService.updateUser(currentUser);
-		return new ResponseEntity<User>(currentUser, HttpStatus.OK);
+			if (user.getFirstName() != null)
+				currentUser.setFirstName(user.getFirstName());
+
+			if (user.getLastName() != null)
+				currentUser.setLastName(user.getLastName());
+
+			if (user.getEmail() != null)
+				currentUser.setEmail(user.getEmail());
+
+			if (password != null)
+				currentUser.setPassword(password);
+
+			if (user.getStatus() != null)
+				currentUser.setStatus(user.getStatus());
+
+			try {
+				userService.updateUser(currentUser, baseVersion);
+			} catch (UserVersionConflictException e) {
+				if (expectedVersion != null || attempt == MAX_UPDATE_ATTEMPTS)
+					throw e;
+				logger.debug("User {} changed concurrently, merging the update again.", userName);
+				continue;
+			}
+			auditLog.audit(AuditAction.USER_UPDATED, reqUser.getUsername(), userName, currentUser.getId());
+			if (password != null || user.getStatus() != null)
+				revokeCredentials(currentUser.getUserName());
+			HttpHeaders headers = new HttpHeaders();
+			headers.setETag(etag(currentUser.getVersion()));
+			return new ResponseEntity<User>(currentUser, headers, HttpStatus.OK);
+		}
 	}
 
 	/**
@@ -205,17 +638,22 @@ public class UserController {
 		Authentication authentication = (Authentication) principal;
 		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
 				.getPrincipal();
-		logger.debug("DELETE/deleteUser requesting user: " + reqUser.toString());
+		logger.debug("DELETE/deleteUser requesting user: {}", reqUser);
 		logger.debug("Fetching & Deleting User with userName {}", userName);
 
 		User user = userService.findByUserName(userName);
 		if (user == null) {
-			logger.error("Unable to delete. User with userName %s not found.", userName);
+			logger.error("Unable to delete. User with userName {} not found.", userName);
+			return new ResponseEntity<Object>(
+					String.format("Unable to delete. User with id %s is not found.", userName), HttpStatus.NOT_FOUND);
+		}
+		if (!userService.deleteUserById(user.getId())) {
+			logger.error("Unable to delete. User with userName {} was deleted meanwhile.", userName);
 			return new ResponseEntity<Object>(
 					String.format("Unable to delete. User with id %s is not found.", userName), HttpStatus.NOT_FOUND);
 		}
-		userService.deleteUserById(user.getId());
-		inMemoryUserDetailsManager.deleteUser(user.getUserName());
+		auditLog.audit(AuditAction.USER_DELETED, reqUser.getUsername(), userName, user.getId());
+		revokeCredentials(user.getUserName());
 		return new ResponseEntity<User>(HttpStatus.NO_CONTENT);
 	}
 
@@ -230,92 +668,105 @@ public class UserController {
 		Authentication authentication = (Authentication) principal;
 		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
 				.getPrincipal();
-		logger.debug("DELETE/deleteAllUsers requesting user: " + reqUser.toString());
+		logger.debug("DELETE/deleteAllUsers requesting user: {}", reqUser);
 		logger.debug("Deleting All Users");
 
-		List<User> users = userService.findAllUsers();
 		userService.deleteAllUsers();
-		users.forEach(u -> inMemoryUserDetailsManager.deleteUser(u.getUserName()));
+		auditLog.audit(AuditAction.ALL_USERS_DELETED, reqUser.getUsername(), null, 0L);
+		authenticationCache.invalidateAll();
+		accessTokenService.revokeAll();
 		return new ResponseEntity<User>(HttpStatus.NO_CONTENT);
 	}
 	
+	/*
+	 * Cached logins and issued tokens must not outlive a change to the user.
+	 */
+	private void revokeCredentials(String userName) {
+		authenticationCache.invalidate(userName);
+		accessTokenService.revoke(userName);
+	}
+	
 	/** Async APIs */
 	
 	/**
 	 * getUserAsync
+	 * 	- the container thread is released as soon as the lookup is started; the
+	 * 	  response is written when it completes or after ASYNC_TIMEOUT_SECS.
+	 * 	- fields selects the properties returned.
 	 * 
 	 * @param userName
+	 * @param fields comma-separated User properties, all by default
 	 * @return user
 	 */
 	@RequestMapping(value = "/async/user/{userName}", method = RequestMethod.GET, produces = { MediaType.APPLICATION_JSON_VALUE })
-	public ResponseEntity<?> getUserAsync(Principal principal, @PathVariable("userName") String userName) {
+	public DeferredResult<ResponseEntity<?>> getUserAsync(Principal principal, @PathVariable("userName") String userName,
+			@RequestParam(value = "fields", required = false) String fields) {
 		Authentication authentication = (Authentication) principal;
 		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
 				.getPrincipal();
-		logger.debug("GET/getUserAsync requesting user: " + reqUser.toString());
+		logger.debug("GET/getUserAsync requesting user: {}", reqUser);
 		logger.debug("GET User with userName {}", userName);
 		
-		String err;
-		try {
-			CompletableFuture<User> userFuture = userService.findByUserNameAsync(userName);
-			if (userFuture == null) {
-				logger.debug("User with userName {} not found.", userName);
-				return new ResponseEntity<Object>(String.format("User with userName %s is not found.", userName),
-						HttpStatus.NOT_FOUND);
-			}
-			
-			User user = userFuture.get(ASYNC_TIMEOUT_SECS, TimeUnit.SECONDS);
-			return new ResponseEntity<User>(user, HttpStatus.OK);
-		} catch (InterruptedException e) {
-			logger.error(String.format("InterruptedException:%s", e));
-			err = "Request was interrupted.";
-		} catch (ExecutionException e) {
-			logger.error(String.format("ExecutionException:%s", e));
-			err = "There was an execution error.";
-		} catch (TimeoutException e) {
-			logger.error(String.format("TimeoutException:%s", e));
-			err = "Request timed out.";
-		}
-		return new ResponseEntity<String>(String.format("{'ERR': '%s'}", err), HttpStatus.REQUEST_TIMEOUT);
+		return toDeferredResult(userName, userService.findUserJsonAsync(userName, UserField.parse(fields), 0L));
 	}
 	
 	/**
 	 * getUserAsync
 	 * 
 	 * @param userName
+	 * @param fields comma-separated User properties, all by default
 	 * @return user
 	 */
 	@RequestMapping(value = "/async/user/{userName}/{delay}", method = RequestMethod.GET, produces = { MediaType.APPLICATION_JSON_VALUE })
-	public ResponseEntity<?> getUserAsyncDelayed(Principal principal, @PathVariable("userName") String userName, @PathVariable("delay") Long delay) {
+	public DeferredResult<ResponseEntity<?>> getUserAsyncDelayed(Principal principal, @PathVariable("userName") String userName, @PathVariable("delay") Long delay,
+			@RequestParam(value = "fields", required = false) String fields) {
 		Authentication authentication = (Authentication) principal;
 		org.springframework.security.core.userdetails.User reqUser = (org.springframework.security.core.userdetails.User) authentication
 				.getPrincipal();
-		logger.debug("GET/getUserAsync requesting user: " + reqUser.toString());
+		logger.debug("GET/getUserAsync requesting user: {}", reqUser);
 		logger.debug("GET User with userName {}", userName);
 		
-		String err;
-		try {
-			CompletableFuture<User> userFuture = userService.findByUserNameAsyncDelayed(userName, delay.longValue());
-			if (userFuture == null) {
-				logger.debug("User with userName {} not found.", userName);
-				return new ResponseEntity<Object>(String.format("User with userName %s is not found.", userName),
-						HttpStatus.NOT_FOUND);
-			}
-			
-			User user = userFuture.get(ASYNC_TIMEOUT_SECS, TimeUnit.SECONDS);
-			return new ResponseEntity<User>(user, HttpStatus.OK);
-		} catch (InterruptedException e) {
-			logger.error(String.format("InterruptedException:%s", e));
-			err = "Request was interrupted.";
-		} catch (ExecutionException e) {
-			logger.error(String.format("ExecutionException:%s", e));
-			err = "There was an execution error.";
-		} catch (TimeoutException e) {
-			logger.error(String.format("TimeoutException:%s", e));
-			err = "Request timed out.";
+		return toDeferredResult(userName,
+				userService.findUserJsonAsync(userName, UserField.parse(fields), delay.longValue()));
+	}
+
+	/*
+	 * Completes the response from the lookup's callbacks instead of waiting on it.
+	 * The timeout is enforced by the container, which also cancels the lookup.
+	 * A delayed lookup the pool rejects once it is due gets the same 503 as one rejected up front.
+	 */
+	private DeferredResult<ResponseEntity<?>> toDeferredResult(String userName, CompletableFuture<byte[]> userFuture) {
+		DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(TimeUnit.SECONDS.toMillis(ASYNC_TIMEOUT_SECS));
+		if (userFuture == null) {
+			logger.debug("User with userName {} not found.", userName);
+			result.setResult(new ResponseEntity<Object>(String.format("User with userName %s is not found.", userName),
+					HttpStatus.NOT_FOUND));
+			return result;
 		}
-		return new ResponseEntity<String>(String.format("{'ERR': '%s'}", err), HttpStatus.REQUEST_TIMEOUT);
+
+		result.onTimeout(() -> {
+			logger.error("TimeoutException: lookup of {} did not complete in {} seconds", userName, ASYNC_TIMEOUT_SECS);
+			userFuture.cancel(false);
+			result.setResult(asyncError("Request timed out."));
+		});
+		userFuture.whenComplete((user, e) -> {
+			if (e == null && user == null)
+				result.setResult(new ResponseEntity<Object>(
+						String.format("User with userName %s is not found.", userName), HttpStatus.NOT_FOUND));
+			else if (e == null)
+				result.setResult(new ResponseEntity<byte[]>(user, HttpStatus.OK));
+			else if (e instanceof RejectedExecutionException || e.getCause() instanceof RejectedExecutionException)
+				result.setErrorResult(e instanceof RejectedExecutionException ? e : e.getCause());
+			else if (!(e instanceof CancellationException)) {
+				logger.error("ExecutionException: lookup of {} failed", userName, e);
+				result.setResult(asyncError("There was an execution error."));
+			}
+		});
+		return result;
 	}
 
+	private static ResponseEntity<?> asyncError(String err) {
+		return new ResponseEntity<String>(String.format("{'ERR': '%s'}", err), HttpStatus.REQUEST_TIMEOUT);
+	}
 
 }
@@ -0,0 +1,53 @@
+package com.identityservice.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/*
+ * Bearer token issued in exchange for Basic credentials, shaped like an
+ * OAuth 2.0 token response.
+ * 
+ */
+public class AccessToken implements java.io.Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@JsonProperty("access_token")
+	private String accessToken;
+
+	@JsonProperty("token_type")
+	private String tokenType = "Bearer";
+
+	@JsonProperty("expires_in")
+	private long expiresIn;
+
+	public AccessToken() {
+	}
+
+	public AccessToken(String accessToken, long expiresIn) {
+		this.accessToken = accessToken;
+		this.expiresIn = expiresIn;
+	}
+
+	public String getAccessToken() {
+		return accessToken;
+	}
+
+	public void setAccessToken(String accessToken) {
+		this.accessToken = accessToken;
+	}
+
+	public String getTokenType() {
+		return tokenType;
+	}
+
+	public void setTokenType(String tokenType) {
+		this.tokenType = tokenType;
+	}
+
+	public long getExpiresIn() {
+		return expiresIn;
+	}
+
+	public void setExpiresIn(long expiresIn) {
+		this.expiresIn = expiresIn;
+	}
+}
@@ -0,0 +1,60 @@
+package com.identityservice.dto;
+
+/*
+ * Outcome of one line of a bulk user import.
+ * 
+ */
+public class BulkImportRecordResult implements java.io.Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public enum Outcome {
+		CREATED, CONFLICT, INVALID
+	}
+
+	private int line;
+	private String userName;
+	private Outcome outcome;
+	private String message;
+
+	public BulkImportRecordResult() {
+	}
+
+	public BulkImportRecordResult(int line, String userName, Outcome outcome, String message) {
+		this.line = line;
+		this.userName = userName;
+		this.outcome = outcome;
+		this.message = message;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public void setLine(int line) {
+		this.line = line;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	public void setOutcome(Outcome outcome) {
+		this.outcome = outcome;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+}
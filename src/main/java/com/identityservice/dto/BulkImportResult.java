@@ -0,0 +1,57 @@
+package com.identityservice.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Summary of a bulk user import: counts per outcome and the outcome of every line.
+ * 
+ */
+public class BulkImportResult implements java.io.Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private int total;
+	private int created;
+	private int conflicts;
+	private int invalid;
+	private List<BulkImportRecordResult> results = new ArrayList<>();
+
+	/**
+	 * @param result
+	 */
+	public void add(BulkImportRecordResult result) {
+		results.add(result);
+		total++;
+		switch (result.getOutcome()) {
+		case CREATED:
+			created++;
+			break;
+		case CONFLICT:
+			conflicts++;
+			break;
+		case INVALID:
+			invalid++;
+			break;
+		}
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public int getCreated() {
+		return created;
+	}
+
+	public int getConflicts() {
+		return conflicts;
+	}
+
+	public int getInvalid() {
+		return invalid;
+	}
+
+	public List<BulkImportRecordResult> getResults() {
+		return results;
+	}
+}
@@ -1,18 +1,28 @@
 package com.identityservice.dto;
 
 import java.util.Calendar;
-import java.util.concurrent.atomic.AtomicLong;
 
 import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.Size;
+import javax.validation.groups.Default;
 
 import org.springframework.format.annotation.DateTimeFormat;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public class User implements java.io.Serializable {
     private static final long serialVersionUID = 1L;
-    private static final AtomicLong counter = new AtomicLong();
-
+    /**
+     * Validation group holding only the size limits, for partial updates where
+     * absent fields are left as they are.
+     */
+    public interface Limits {
+    }
+    
+    /**
+     * Users get their id from the store when they are created, not here.
+     */
     public User() {
-    	this.id = counter.incrementAndGet();
     	this.status = Status.ACTIVE;
     }
     
@@ -27,7 +37,6 @@ public class User implements java.io.Serializable {
     	this.userName = userName;
     	this.createDate = Calendar.getInstance();
     	this.updateDate = Calendar.getInstance();
-    	this.id = counter.incrementAndGet();
     	this.status = Status.ACTIVE;
     	this.email = String.format("%s@identityservice.com", userName);
     }
@@ -39,25 +48,45 @@ public class User implements java.io.Serializable {
     	this.createDate = Calendar.getInstance();
     	this.updateDate = Calendar.getInstance();
     	this.password = password;
-    	this.id = counter.incrementAndGet();
     	this.status = Status.ACTIVE;
     	this.email = String.format("%s@identityservice.com", userName);
     }
     
+    /**
+     * Full-state constructor used to materialize stored users.
+     */
+    public User(Long id, String firstName, String lastName, String userName, String password, String email,
+            Status status, Calendar createDate, Calendar updateDate) {
+        this.id = id;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.userName = userName;
+        this.password = password;
+        this.email = email;
+        this.status = status;
+        this.createDate = createDate;
+        this.updateDate = updateDate;
+    }
+    
     private Long id;
     
     @NotEmpty(message = "{user.firstName.required}")
+    @Size(max = 100, message = "{user.firstName.size}", groups = { Default.class, Limits.class })
     private String firstName;
     
     @NotEmpty(message = "{user.lastName.required}")
+    @Size(max = 100, message = "{user.lastName.size}", groups = { Default.class, Limits.class })
     private String lastName;
     
     @NotEmpty(message = "{user.userName.required}")
+    @Size(max = 100, message = "{user.userName.size}", groups = { Default.class, Limits.class })
     private String userName;
     
     @NotEmpty(message = "{user.password.required}")
+    @Size(max = 256, message = "{user.password.size}", groups = { Default.class, Limits.class })
     private String password;
     
+    @Size(max = 254, message = "{user.email.size}", groups = { Default.class, Limits.class })
     private String email;
     
     private Status status;
@@ -68,6 +97,10 @@ public class User implements java.io.Serializable {
     @DateTimeFormat(style = "M-")
     private Calendar updateDate;
 
+    /** Version of the stored record this DTO was read from; exposed as the ETag, not in the body. */
+    @JsonIgnore
+    private long version;
+
 
     /**
      * Gets firstName value
@@ -229,6 +262,26 @@ public class User implements java.io.Serializable {
         return this;
     }
 
+    /**
+     * Gets version value
+     *
+     * @return long, 0 if the user was not read from the store
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Sets version value
+     *
+     * @param version
+     * @return User
+     */
+    public User setVersion(long version) {
+        this.version = version;
+        return this;
+    }
+
 	public Long getId() {
 		return id;
 	}
@@ -0,0 +1,56 @@
+package com.identityservice.dto;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.identityservice.exception.InvalidFieldsException;
+
+/*
+ * User properties that can be selected with the fields= parameter of the read endpoints.
+ * 
+ */
+public enum UserField {
+	ID("id"), FIRST_NAME("firstName"), LAST_NAME("lastName"), USER_NAME("userName"), PASSWORD("password"),
+	EMAIL("email"), STATUS("status"), CREATE_DATE("createDate"), UPDATE_DATE("updateDate");
+
+	private final String jsonName;
+
+	private UserField(String jsonName) {
+		this.jsonName = jsonName;
+	}
+
+	/**
+	 * @return property name in the User JSON
+	 */
+	public String getJsonName() {
+		return jsonName;
+	}
+
+	/**
+	 * @param fields comma-separated property names, e.g. userName,status,email
+	 * @return the selected fields in User JSON order, or null when fields is
+	 *         empty, meaning the whole user
+	 * @throws InvalidFieldsException for a name that is not a User property
+	 */
+	public static Set<UserField> parse(String fields) {
+		if (fields == null || fields.trim().isEmpty())
+			return null;
+		Set<UserField> selected = EnumSet.noneOf(UserField.class);
+		for (String name : fields.split(",")) {
+			UserField field = forJsonName(name.trim());
+			if (field == null)
+				throw new InvalidFieldsException(name.trim());
+			selected.add(field);
+		}
+		return Collections.unmodifiableSet(selected);
+	}
+
+	private static UserField forJsonName(String name) {
+		for (UserField field : values()) {
+			if (field.jsonName.equals(name))
+				return field;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,39 @@
+package com.identityservice.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Result of a multi-get: the users found and the userNames that were not.
+ * 
+ */
+public class UserLookupResult implements java.io.Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private List<User> users = new ArrayList<>();
+	private List<String> missing = new ArrayList<>();
+
+	public UserLookupResult() {
+	}
+
+	public UserLookupResult(List<User> users, List<String> missing) {
+		this.users = users;
+		this.missing = missing;
+	}
+
+	public List<User> getUsers() {
+		return users;
+	}
+
+	public void setUsers(List<User> users) {
+		this.users = users;
+	}
+
+	public List<String> getMissing() {
+		return missing;
+	}
+
+	public void setMissing(List<String> missing) {
+		this.missing = missing;
+	}
+}
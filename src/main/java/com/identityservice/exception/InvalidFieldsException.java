@@ -0,0 +1,14 @@
+package com.identityservice.exception;
+
+/*
+ * The fields= parameter names something that is not a User property.
+ * 
+ */
+public class InvalidFieldsException extends RuntimeException {
+
+	private static final long serialVersionUID = -2296131720864652130L;
+
+	public InvalidFieldsException(String field) {
+		super(String.format("Unknown field '%s'.", field));
+	}
+}
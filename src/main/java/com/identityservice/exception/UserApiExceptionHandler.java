@@ -1,5 +1,6 @@
 package com.identityservice.exception;
 
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 import org.springframework.context.support.DefaultMessageSourceResolvable;
@@ -8,6 +9,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler;
 
@@ -27,4 +29,37 @@ public class UserApiExceptionHandler extends ResponseEntityExceptionHandler {
 				request.getDescription(false));
 		return new ResponseEntity<Object>(errorResponse, HttpStatus.BAD_REQUEST);
 	}
+
+	/**
+	 * The lookup executor is saturated: ask the client to come back instead of
+	 * queueing without bound.
+	 */
+	@ExceptionHandler(RejectedExecutionException.class)
+	public ResponseEntity<Object> handleRejectedExecution(RejectedExecutionException ex, WebRequest request) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, "1");
+		UserApiValidationErrorResponse errorResponse = new UserApiValidationErrorResponse(
+				"Too many pending requests, please retry later.", request.getDescription(false));
+		return new ResponseEntity<Object>(errorResponse, headers, HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+	/**
+	 * A fields= projection names an unknown property.
+	 */
+	@ExceptionHandler(InvalidFieldsException.class)
+	public ResponseEntity<Object> handleInvalidFields(InvalidFieldsException ex, WebRequest request) {
+		UserApiValidationErrorResponse errorResponse = new UserApiValidationErrorResponse(ex.getMessage(),
+				request.getDescription(false));
+		return new ResponseEntity<Object>(errorResponse, HttpStatus.BAD_REQUEST);
+	}
+
+	/**
+	 * The user changed since the version the request was based on.
+	 */
+	@ExceptionHandler(UserVersionConflictException.class)
+	public ResponseEntity<Object> handleVersionConflict(UserVersionConflictException ex, WebRequest request) {
+		UserApiValidationErrorResponse errorResponse = new UserApiValidationErrorResponse(ex.getMessage(),
+				request.getDescription(false));
+		return new ResponseEntity<Object>(errorResponse, HttpStatus.PRECONDITION_FAILED);
+	}
 }
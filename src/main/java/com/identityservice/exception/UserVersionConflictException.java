@@ -0,0 +1,32 @@
+package com.identityservice.exception;
+
+/*
+ * A versioned update found the stored user at a different version than the
+ * one it was based on, or no longer there at all.
+ * 
+ */
+public class UserVersionConflictException extends RuntimeException {
+
+	private static final long serialVersionUID = 6120451468573298371L;
+
+	private final String userName;
+	private final long currentVersion;
+
+	/**
+	 * @param userName
+	 * @param currentVersion version now stored, 0 if the user is gone
+	 */
+	public UserVersionConflictException(String userName, long currentVersion) {
+		super(String.format("User %s was changed concurrently.", userName));
+		this.userName = userName;
+		this.currentVersion = currentVersion;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public long getCurrentVersion() {
+		return currentVersion;
+	}
+}
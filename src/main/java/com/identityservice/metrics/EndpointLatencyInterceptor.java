@@ -0,0 +1,74 @@
+package com.identityservice.metrics;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+/*
+ * Times every controller endpoint, from the first dispatch to the completion
+ * of the response, so async endpoints include the time spent waiting for
+ * their result.
+ *
+ * Requests that end with a 5xx status or an unhandled exception are counted
+ * as errors and kept out of the latency distribution.
+ *
+ */
+public class EndpointLatencyInterceptor implements AsyncHandlerInterceptor {
+
+	static final String LATENCY = "identity_http_request_seconds";
+	static final String ERRORS = "identity_http_request_errors_total";
+	private static final String START_ATTRIBUTE = EndpointLatencyInterceptor.class.getName() + ".start";
+
+	private final MetricsRegistry registry;
+	private final Map<Method, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+	public EndpointLatencyInterceptor(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		// An async dispatch comes back through here; keep the start of the original request.
+		if (handler instanceof HandlerMethod && request.getAttribute(START_ATTRIBUTE) == null)
+			request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+		return true;
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) {
+		Object start = request.getAttribute(START_ATTRIBUTE);
+		if (!(handler instanceof HandlerMethod) || start == null)
+			return;
+		request.removeAttribute(START_ATTRIBUTE);
+		Endpoint endpoint = endpoints.computeIfAbsent(((HandlerMethod) handler).getMethod(), this::register);
+		if (ex != null || response.getStatus() >= 500)
+			endpoint.errors.increment();
+		else
+			endpoint.latency.recordSince((Long) start);
+	}
+
+	private Endpoint register(Method method) {
+		String name = method.getDeclaringClass().getSimpleName() + "." + method.getName();
+		return new Endpoint(
+				registry.timer(LATENCY, "Latency of successful requests by endpoint.", "endpoint", name),
+				registry.counter(ERRORS, "Requests that ended with a 5xx status or an exception.", "endpoint", name));
+	}
+
+	private static final class Endpoint {
+		private final LatencyTimer latency;
+		private final LongAdder errors;
+
+		private Endpoint(LatencyTimer latency, LongAdder errors) {
+			this.latency = latency;
+			this.errors = errors;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.identityservice.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/*
+ * Latency distribution of one operation since startup.
+ *
+ * Recording goes into an HdrHistogram Recorder, which is wait-free for the
+ * recording threads. Readers swap out the values recorded since the previous
+ * read and fold them into the running total.
+ *
+ */
+public final class LatencyTimer {
+
+	/** Longer values are recorded as this; an hour is far beyond any timeout. */
+	static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.HOURS.toNanos(1L);
+	/** Two significant digits: quantiles are within 1%, and a timer costs tens of kilobytes. */
+	private static final int SIGNIFICANT_DIGITS = 2;
+
+	private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+	private final LongAdder totalNanos = new LongAdder();
+	private final Histogram total = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+	private Histogram interval;
+
+	/**
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0L, Math.min(nanos, HIGHEST_TRACKABLE_NANOS));
+		recorder.recordValue(value);
+		totalNanos.add(value);
+	}
+
+	/**
+	 * Records the time elapsed since startNanos, as returned by System.nanoTime().
+	 *
+	 * @param startNanos
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return copy of every value recorded so far
+	 */
+	public synchronized Histogram snapshot() {
+		interval = recorder.getIntervalHistogram(interval);
+		total.add(interval);
+		return total.copy();
+	}
+
+	/**
+	 * @return sum of the recorded values; values recorded concurrently with snapshot() may be missing from one or the other
+	 */
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+}
@@ -0,0 +1,49 @@
+package com.identityservice.metrics;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import com.identityservice.security.PasswordHashing;
+import com.identityservice.service.LookupExecutor;
+
+/*
+ * Times every endpoint and exposes the pools' occupancy as gauges.
+ * 
+ */
+@Configuration
+public class MetricsConfig implements WebMvcConfigurer {
+
+	@Autowired
+	private MetricsRegistry metricsRegistry;
+
+	@Autowired
+	private LookupExecutor lookupExecutor;
+
+	@Autowired
+	private PasswordHashing passwordHashing;
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(new EndpointLatencyInterceptor(metricsRegistry));
+	}
+
+	@PostConstruct
+	public void registerGauges() {
+		metricsRegistry.gauge("identity_lookup_queue_depth", "Async lookups waiting for a thread.",
+				lookupExecutor::getQueueDepth);
+		metricsRegistry.gauge("identity_lookup_active_threads", "Threads running an async lookup.",
+				lookupExecutor::getActiveThreads);
+		metricsRegistry.counter("identity_lookup_rejected_total", "Async lookups rejected because the queue was full.",
+				lookupExecutor::getRejectedLookups);
+		metricsRegistry.gauge("identity_password_hashing_pending", "Password hashes queued or running.",
+				passwordHashing::getPending);
+		metricsRegistry.gauge("identity_password_hashing_active_threads", "Threads computing a password hash.",
+				passwordHashing::getActiveThreads);
+		metricsRegistry.counter("identity_password_hashing_rejected_total",
+				"Password hashes rejected because the pool was full.", passwordHashing::getRejected);
+	}
+}
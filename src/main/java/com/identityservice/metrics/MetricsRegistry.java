@@ -0,0 +1,166 @@
+package com.identityservice.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.stereotype.Component;
+
+/*
+ * Named latency timers, counters and gauges of the service, written out in the
+ * Prometheus text exposition format (version 0.0.4).
+ *
+ * A metric family has one series per value of its single label, or a single
+ * unlabelled series. Timers are exposed as summaries in seconds with the
+ * 0.5, 0.99 and 0.999 quantiles over everything recorded since startup.
+ *
+ */
+@Component
+public class MetricsRegistry {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @param name  family name, in seconds
+	 * @param help
+	 * @param label label name, or null for an unlabelled series
+	 * @param value label value
+	 * @return the timer of that series, created on first use
+	 */
+	public LatencyTimer timer(String name, String help, String label, String value) {
+		return (LatencyTimer) family(name, help, "summary", label).series.computeIfAbsent(seriesKey(value),
+				k -> new LatencyTimer());
+	}
+
+	/**
+	 * @param name  family name, ending in _total
+	 * @param help
+	 * @param label label name, or null for an unlabelled series
+	 * @param value label value
+	 * @return the counter of that series, created on first use
+	 */
+	public LongAdder counter(String name, String help, String label, String value) {
+		return (LongAdder) family(name, help, "counter", label).series.computeIfAbsent(seriesKey(value),
+				k -> new LongAdder());
+	}
+
+	/**
+	 * Registers an unlabelled counter kept elsewhere, read when the metrics are written.
+	 *
+	 * @param name  family name, ending in _total
+	 * @param help
+	 * @param value
+	 */
+	public void counter(String name, String help, LongSupplier value) {
+		family(name, help, "counter", null).series.put(seriesKey(null), value);
+	}
+
+	/**
+	 * Registers an unlabelled gauge read when the metrics are written; a later registration replaces it.
+	 *
+	 * @param name
+	 * @param help
+	 * @param value
+	 */
+	public void gauge(String name, String help, LongSupplier value) {
+		family(name, help, "gauge", null).series.put(seriesKey(null), value);
+	}
+
+	/**
+	 * @return every metric in the text exposition format
+	 */
+	public String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+		for (Family family : families.values()) {
+			out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> series : family.series.entrySet()) {
+				String labelValue = series.getKey().isEmpty() ? null : series.getKey().substring(1);
+				Object metric = series.getValue();
+				if (metric instanceof LatencyTimer)
+					writeSummary(out, family, labelValue, (LatencyTimer) metric);
+				else if (metric instanceof LongAdder)
+					writeSample(out, family.name, family.label, labelValue, null, ((LongAdder) metric).sum());
+				else
+					writeSample(out, family.name, family.label, labelValue, null, ((LongSupplier) metric).getAsLong());
+			}
+		}
+		return out.toString();
+	}
+
+	private static void writeSummary(StringBuilder out, Family family, String labelValue, LatencyTimer timer) {
+		Histogram histogram = timer.snapshot();
+		for (double quantile : QUANTILES) {
+			double seconds = histogram.getTotalCount() == 0L ? Double.NaN
+					: histogram.getValueAtPercentile(quantile * 100.0) / NANOS_PER_SECOND;
+			writeSample(out, family.name, family.label, labelValue, Double.toString(quantile), seconds);
+		}
+		writeSample(out, family.name + "_sum", family.label, labelValue, null, timer.getTotalNanos() / NANOS_PER_SECOND);
+		writeSample(out, family.name + "_count", family.label, labelValue, null, histogram.getTotalCount());
+	}
+
+	private static void writeSample(StringBuilder out, String name, String label, String labelValue, String quantile,
+			Object value) {
+		out.append(name);
+		if (labelValue != null || quantile != null) {
+			out.append('{');
+			if (labelValue != null) {
+				out.append(label).append("=\"");
+				escapeLabelValue(out, labelValue);
+				out.append('"');
+			}
+			if (quantile != null)
+				out.append(labelValue != null ? "," : "").append("quantile=\"").append(quantile).append('"');
+			out.append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	private static void escapeLabelValue(StringBuilder out, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				out.append('\\').append(c);
+			else if (c == '\n')
+				out.append("\\n");
+			else
+				out.append(c);
+		}
+	}
+
+	private Family family(String name, String help, String type, String label) {
+		Family family = families.computeIfAbsent(name, n -> new Family(n, help, type, label));
+		if (!family.type.equals(type))
+			throw new IllegalArgumentException(String.format("Metric %s is a %s, not a %s", name, family.type, type));
+		return family;
+	}
+
+	/*
+	 * Orders the unlabelled series first and keeps a label value of "" apart from no label.
+	 */
+	private static String seriesKey(String labelValue) {
+		return labelValue == null ? "" : "=" + labelValue;
+	}
+
+	private static final class Family {
+		private final String name;
+		private final String help;
+		private final String type;
+		private final String label;
+		private final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+		private Family(String name, String help, String type, String label) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.label = label;
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package com.identityservice.persistence;
+
+/*
+ * When an appended journal record is acknowledged.
+ * 
+ * BATCH	- after the group commit batch containing it has been fsync'ed.
+ * INTERVAL	- after it has been written; the log is fsync'ed every fsync interval.
+ * NONE		- after it has been written; fsync is left to the operating system.
+ * 
+ */
+public enum Durability {
+	BATCH, INTERVAL, NONE
+}
@@ -0,0 +1,22 @@
+package com.identityservice.persistence;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Journal records serialized by UserJournal.encode, ready to be appended.
+ * 
+ * Encoding is split from appending so that a record the journal cannot take
+ * fails before the caller has changed anything.
+ * 
+ */
+public final class EncodedRecords {
+
+	static final EncodedRecords NONE = new EncodedRecords(null);
+
+	/** Frames as written to the log; null for a journal that writes nothing. */
+	final ByteBuffer frames;
+
+	EncodedRecords(ByteBuffer frames) {
+		this.frames = frames;
+	}
+}
@@ -0,0 +1,68 @@
+package com.identityservice.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Id leases recorded in <data-dir>/ids.hwm, which holds the next id nobody has
+ * leased yet as a single long.
+ * 
+ * Every lease reads, advances and fsyncs the high-water mark, so a restart
+ * never hands out an id leased before. Leases in this JVM take turns, so they
+ * never get overlapping blocks. Other processes are not guarded against: the
+ * write-ahead log's wal.lock already keeps a second instance off the same
+ * data directory.
+ * Ids of a block that was not used up before a restart are skipped.
+ * 
+ */
+public final class FileIdLeaseStore implements IdLeaseStore {
+
+	static final String FILE_NAME = "ids.hwm";
+
+	private final Path file;
+
+	private FileIdLeaseStore(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param directory data directory, created if missing
+	 * @return lease store backed by directory/ids.hwm
+	 * @throws IOException
+	 */
+	public static FileIdLeaseStore open(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		return new FileIdLeaseStore(directory.resolve(FILE_NAME));
+	}
+
+	@Override
+	public long lease(long floor, int size) throws IOException {
+		// Stores opened on the same directory share the file, so they take turns too.
+		synchronized (FileIdLeaseStore.class) {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocate(8);
+				long highWaterMark = 1L;
+				if (channel.size() >= 8) {
+					channel.read(buffer, 0L);
+					buffer.flip();
+					highWaterMark = buffer.getLong();
+				}
+				long start = Math.max(highWaterMark, floor);
+				buffer.clear();
+				buffer.putLong(start + size).flip();
+				channel.write(buffer, 0L);
+				channel.force(false);
+				return start;
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,22 @@
+package com.identityservice.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/*
+ * Hands out disjoint blocks of user ids and remembers how far it got, so that
+ * ids are never reused, across restarts or between instances sharing it.
+ * 
+ */
+public interface IdLeaseStore extends Closeable {
+
+	/**
+	 * Reserves the next block of ids for the caller.
+	 * 
+	 * @param floor lowest id the block may start at
+	 * @param size  number of ids in the block
+	 * @return first id of the block; it and the following size - 1 ids are the caller's
+	 * @throws IOException when the reservation could not be recorded
+	 */
+	long lease(long floor, int size) throws IOException;
+}
@@ -0,0 +1,21 @@
+package com.identityservice.persistence;
+
+/*
+ * Id leases used when persistence is disabled: unique within this process only.
+ * 
+ */
+public class InMemoryIdLeaseStore implements IdLeaseStore {
+
+	private long highWaterMark = 1L;
+
+	@Override
+	public synchronized long lease(long floor, int size) {
+		long start = Math.max(highWaterMark, floor);
+		highWaterMark = start + size;
+		return start;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,64 @@
+package com.identityservice.persistence;
+
+import com.identityservice.dto.User;
+
+/*
+ * One user store mutation: a saved (created or updated) user, a deleted user or a cleared store.
+ * 
+ */
+public final class JournalRecord {
+
+	public enum Type {
+		SAVE, DELETE, CLEAR
+	}
+
+	private static final JournalRecord CLEAR = new JournalRecord(Type.CLEAR, null, 0L, null);
+
+	private final Type type;
+	private final User user;
+	private final long id;
+	private final String userName;
+
+	private JournalRecord(Type type, User user, long id, String userName) {
+		this.type = type;
+		this.user = user;
+		this.id = id;
+		this.userName = userName;
+	}
+
+	public static JournalRecord save(User user) {
+		return new JournalRecord(Type.SAVE, user, user.getId(), user.getUserName());
+	}
+
+	public static JournalRecord delete(long id, String userName) {
+		return new JournalRecord(Type.DELETE, null, id, userName);
+	}
+
+	public static JournalRecord clear() {
+		return CLEAR;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the saved user, null unless type is SAVE
+	 */
+	public User getUser() {
+		return user;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	@Override
+	public String toString() {
+		return "JournalRecord [type=" + type + ", id=" + id + ", userName=" + userName + "]";
+	}
+}
@@ -0,0 +1,37 @@
+package com.identityservice.persistence;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/*
+ * Journal used when persistence is disabled: nothing is written, nothing is replayed.
+ * 
+ */
+public class NoOpUserJournal implements UserJournal {
+
+	private static final CompletableFuture<Void> COMMITTED = CompletableFuture.completedFuture(null);
+
+	@Override
+	public EncodedRecords encode(List<JournalRecord> records) {
+		return EncodedRecords.NONE;
+	}
+
+	@Override
+	public CompletableFuture<Void> append(EncodedRecords records) {
+		return COMMITTED;
+	}
+
+	@Override
+	public void replay(Consumer<JournalRecord> handler) {
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,46 @@
+package com.identityservice.persistence;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/*
+ * Wires the user store journal and id leases from identityservice.persistence.* properties.
+ * 
+ */
+@Configuration
+public class PersistenceConfig {
+
+	@Value("${identityservice.persistence.enabled:false}")
+	private boolean enabled;
+
+	/** Directory holding the write-ahead log segments. */
+	@Value("${identityservice.persistence.data-dir:data}")
+	private String dataDir;
+
+	/** batch, interval or none; see Durability. */
+	@Value("${identityservice.persistence.durability:batch}")
+	private String durability;
+
+	@Value("${identityservice.persistence.fsync-interval-ms:100}")
+	private long fsyncIntervalMillis;
+
+	/** Leases blocks of user ids; the high-water mark lives in the data directory. */
+	@Bean(destroyMethod = "close")
+	public IdLeaseStore idLeaseStore() throws IOException {
+		if (!enabled)
+			return new InMemoryIdLeaseStore();
+		return FileIdLeaseStore.open(Paths.get(dataDir));
+	}
+
+	@Bean(destroyMethod = "close")
+	public UserJournal userJournal() throws IOException {
+		if (!enabled)
+			return new NoOpUserJournal();
+		return WriteAheadLog.open(Paths.get(dataDir, "wal"), Durability.valueOf(durability.trim().toUpperCase()),
+				fsyncIntervalMillis);
+	}
+}
@@ -0,0 +1,192 @@
+package com.identityservice.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.identityservice.dto.User;
+
+/*
+ * Point-in-time image of the user store.
+ *
+ * snapshot-<n>.snap covers every journal segment below n, so recovery loads
+ * it and replays segments n and up. Layout:
+ * 	[int MAGIC][int VERSION][long n] ([byte 1][user])* [byte 0][long user count][int CRC32 of all preceding bytes]
+ * Snapshots are written to a temporary file and renamed once complete, and
+ * loaded through a read-only memory mapping.
+ *
+ */
+final class SnapshotFile {
+
+	static final String PREFIX = "snapshot-";
+	static final String SUFFIX = ".snap";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int MAGIC = 0x49445353;
+	private static final int VERSION = 1;
+	private static final int TRAILER_BYTES = 8 + 4;
+
+	private SnapshotFile() {
+	}
+
+	/**
+	 * @param directory
+	 * @param segment first journal segment not covered by the snapshot
+	 * @param users
+	 * @return number of users written
+	 * @throws IOException
+	 */
+	static long write(Path directory, long segment, Iterable<User> users) throws IOException {
+		Path target = directory.resolve(fileName(segment));
+		Path temp = directory.resolve(fileName(segment) + TEMP_SUFFIX);
+		long count = 0L;
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			CRC32 crc = new CRC32();
+			OutputStream file = Channels.newOutputStream(channel);
+			DataOutputStream out = new DataOutputStream(
+					new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(segment);
+			for (User user : users) {
+				out.writeByte(1);
+				UserRecordCodec.writeUser(out, user);
+				count++;
+			}
+			out.writeByte(0);
+			out.writeLong(count);
+			out.flush();
+			new DataOutputStream(file).writeInt((int) crc.getValue());
+			channel.force(true);
+		}
+		Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(directory);
+		return count;
+	}
+
+	/**
+	 * Memory-maps the snapshot and hands every user to the consumer.
+	 *
+	 * @param snapshot
+	 * @param consumer
+	 * @return number of users loaded
+	 * @throws IOException when the snapshot is truncated or corrupt
+	 */
+	static long load(Path snapshot, Consumer<User> consumer) throws IOException {
+		try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+			if (mapped.capacity() < 16 + 1 + TRAILER_BYTES)
+				throw new IOException(String.format("Snapshot %s is truncated", snapshot));
+
+			int crcOffset = mapped.capacity() - 4;
+			CRC32 crc = new CRC32();
+			ByteBuffer checked = mapped.duplicate();
+			checked.limit(crcOffset);
+			crc.update(checked);
+			if ((int) crc.getValue() != mapped.getInt(crcOffset))
+				throw new IOException(String.format("Snapshot %s failed its checksum", snapshot));
+
+			ByteBuffer body = mapped.duplicate();
+			body.limit(crcOffset);
+			DataInputStream in = new DataInputStream(new ByteBufferInputStream(body));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(String.format("%s is not a version %d snapshot", snapshot, VERSION));
+			in.readLong();
+			long count = 0L;
+			while (in.readByte() == 1) {
+				consumer.accept(UserRecordCodec.readUser(in));
+				count++;
+			}
+			if (in.readLong() != count)
+				throw new IOException(String.format("Snapshot %s has an inconsistent user count", snapshot));
+			return count;
+		}
+	}
+
+	/**
+	 * @param directory
+	 * @return snapshots ordered from oldest to latest
+	 * @throws IOException
+	 */
+	static List<Path> list(Path directory) throws IOException {
+		List<Path> snapshots = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			stream.forEach(snapshots::add);
+		}
+		Collections.sort(snapshots);
+		return snapshots;
+	}
+
+	/**
+	 * Removes snapshot files left behind by a snapshot that never completed.
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	static void deleteIncomplete(Path directory) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + TEMP_SUFFIX)) {
+			for (Path temp : stream)
+				Files.deleteIfExists(temp);
+		}
+	}
+
+	static long segmentOf(Path snapshot) {
+		String name = snapshot.getFileName().toString();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	static String fileName(long segment) {
+		return String.format("%s%020d%s", PREFIX, segment, SUFFIX);
+	}
+
+	/*
+	 * Makes a rename or file creation durable. Not every platform can open a directory, so this is best effort.
+	 */
+	static void syncDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not supported on this platform
+		}
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining())
+				return -1;
+			int n = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, n);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.identityservice.persistence;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/*
+ * Periodically checkpoints the journal on a background thread, so that
+ * startup loads a recent snapshot instead of replaying the whole history.
+ * 
+ */
+@Component
+public class SnapshotScheduler {
+
+	public static final Logger logger = LoggerFactory.getLogger(SnapshotScheduler.class);
+
+	@Autowired
+	private UserJournal journal;
+
+	@Autowired
+	private UserSnapshotSource snapshotSource;
+
+	/** 0 disables periodic snapshots. */
+	@Value("${identityservice.persistence.snapshot-interval-ms:300000}")
+	private long snapshotIntervalMillis;
+
+	private ScheduledExecutorService executor;
+
+	@PostConstruct
+	public void start() {
+		if (snapshotIntervalMillis <= 0)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "identity-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::snapshot, snapshotIntervalMillis, snapshotIntervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		if (executor == null)
+			return;
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @return true if a snapshot was written
+	 */
+	public boolean snapshot() {
+		try {
+			return journal.checkpoint(snapshotSource.snapshotUsers());
+		} catch (IOException | RuntimeException e) {
+			logger.error("Snapshot failed, the journal is kept as is", e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.identityservice.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import com.identityservice.dto.User;
+
+/*
+ * Durable journal of user store mutations.
+ * 
+ * Records are serialized by encode, so callers may keep mutating the users
+ * afterwards. Mutations encode their records before they change the store and
+ * append them after, so a record the journal cannot take leaves the store
+ * untouched. The future returned by append completes once the records are as
+ * durable as the configured Durability promises.
+ * 
+ */
+public interface UserJournal extends Closeable {
+
+	/**
+	 * @param records
+	 * @return the records serialized for append
+	 * @throws java.io.UncheckedIOException if a record cannot be serialized
+	 */
+	EncodedRecords encode(List<JournalRecord> records);
+
+	/**
+	 * @param record
+	 * @return the record serialized for append
+	 * @throws java.io.UncheckedIOException if the record cannot be serialized
+	 */
+	default EncodedRecords encode(JournalRecord record) {
+		return encode(Collections.singletonList(record));
+	}
+
+	/**
+	 * @param records returned by encode, appended once
+	 * @return commit future
+	 */
+	CompletableFuture<Void> append(EncodedRecords records);
+
+	/**
+	 * @param records
+	 * @return commit future
+	 */
+	default CompletableFuture<Void> append(List<JournalRecord> records) {
+		return append(encode(records));
+	}
+
+	/**
+	 * @param record
+	 * @return commit future
+	 */
+	default CompletableFuture<Void> append(JournalRecord record) {
+		return append(encode(record));
+	}
+
+	/**
+	 * Replays every committed record in append order.
+	 * 
+	 * @param handler
+	 * @throws IOException
+	 */
+	void replay(Consumer<JournalRecord> handler) throws IOException;
+
+	/**
+	 * @return true when there is nothing to replay
+	 */
+	boolean isEmpty();
+
+	/**
+	 * Writes a point-in-time snapshot of users so that older history can be discarded.
+	 * 
+	 * @param users live view of the store
+	 * @return true if a snapshot was written
+	 * @throws IOException
+	 */
+	default boolean checkpoint(Iterable<User> users) throws IOException {
+		return false;
+	}
+}
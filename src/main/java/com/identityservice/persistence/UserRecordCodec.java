@@ -0,0 +1,96 @@
+package com.identityservice.persistence;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Calendar;
+
+import com.identityservice.dto.Status;
+import com.identityservice.dto.User;
+
+/*
+ * Binary encoding of users and journal records shared by the persistence files.
+ * 
+ */
+final class UserRecordCodec {
+
+	private static final byte NO_STATUS = -1;
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	private UserRecordCodec() {
+	}
+
+	static void writeRecord(DataOutput out, JournalRecord record) throws IOException {
+		out.writeByte(record.getType().ordinal());
+		switch (record.getType()) {
+		case SAVE:
+			writeUser(out, record.getUser());
+			break;
+		case DELETE:
+			out.writeLong(record.getId());
+			out.writeUTF(record.getUserName());
+			break;
+		case CLEAR:
+			break;
+		}
+	}
+
+	static JournalRecord readRecord(DataInput in) throws IOException {
+		int type = in.readByte();
+		if (type < 0 || type >= JournalRecord.Type.values().length)
+			throw new IOException(String.format("Unknown journal record type %d", type));
+
+		switch (JournalRecord.Type.values()[type]) {
+		case SAVE:
+			return JournalRecord.save(readUser(in));
+		case DELETE:
+			long id = in.readLong();
+			return JournalRecord.delete(id, in.readUTF());
+		default:
+			return JournalRecord.clear();
+		}
+	}
+
+	static void writeUser(DataOutput out, User user) throws IOException {
+		out.writeLong(user.getId());
+		writeNullableString(out, user.getUserName());
+		writeNullableString(out, user.getFirstName());
+		writeNullableString(out, user.getLastName());
+		writeNullableString(out, user.getPassword());
+		writeNullableString(out, user.getEmail());
+		out.writeByte(user.getStatus() == null ? NO_STATUS : user.getStatus().ordinal());
+		out.writeLong(user.getCreateDate() == null ? NO_DATE : user.getCreateDate().getTimeInMillis());
+		out.writeLong(user.getUpdateDate() == null ? NO_DATE : user.getUpdateDate().getTimeInMillis());
+	}
+
+	static User readUser(DataInput in) throws IOException {
+		long id = in.readLong();
+		String userName = readNullableString(in);
+		String firstName = readNullableString(in);
+		String lastName = readNullableString(in);
+		String password = readNullableString(in);
+		String email = readNullableString(in);
+		byte status = in.readByte();
+		return new User(id, firstName, lastName, userName, password, email,
+				status == NO_STATUS ? null : Status.values()[status], readDate(in), readDate(in));
+	}
+
+	private static void writeNullableString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readNullableString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static Calendar readDate(DataInput in) throws IOException {
+		long millis = in.readLong();
+		if (millis == NO_DATE)
+			return null;
+		Calendar date = Calendar.getInstance();
+		date.setTimeInMillis(millis);
+		return date;
+	}
+}
@@ -0,0 +1,15 @@
+package com.identityservice.persistence;
+
+import com.identityservice.dto.User;
+
+/*
+ * The user store as seen by the snapshot writer.
+ * 
+ */
+public interface UserSnapshotSource {
+
+	/**
+	 * @return live, weakly consistent view of every stored user
+	 */
+	Iterable<User> snapshotUsers();
+}
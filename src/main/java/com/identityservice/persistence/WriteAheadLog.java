@@ -0,0 +1,481 @@
+package com.identityservice.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.identityservice.dto.User;
+
+/*
+ * Append-only write-ahead log of user store mutations with group commit.
+ *
+ * Callers serialize their records into a frame and enqueue it. A single writer
+ * thread drains whatever is queued, writes it with one gathering write and,
+ * depending on Durability, issues one fsync for the whole batch before it
+ * acknowledges every caller in the batch.
+ *
+ * On disk the log is a sequence of segment files journal-<n>.log holding frames:
+ * 	[int payload length][int CRC32 of payload][payload]
+ * A torn frame at the end of the last segment (crash during write) is truncated on open.
+ *
+ * checkpoint() compacts the log: it switches appends to a new segment n, writes
+ * a snapshot of the store covering everything before n in the background and
+ * then deletes the older segments and snapshots. Because replaying a record is
+ * idempotent, the snapshot may be fuzzy: changes made while it is written are
+ * replayed from segment n on top of it.
+ *
+ * The log holds an exclusive FileLock on wal.lock in its directory until it is
+ * closed, so a second process opening the same directory fails instead of
+ * interleaving its frames with ours.
+ *
+ */
+public final class WriteAheadLog implements UserJournal {
+
+	public static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+	static final String SEGMENT_PREFIX = "journal-";
+	static final String SEGMENT_SUFFIX = ".log";
+	static final String LOCK_FILE = "wal.lock";
+	private static final int FRAME_HEADER_BYTES = 8;
+	private static final int MAX_BATCH = 1024;
+	private static final long IDLE_POLL_MILLIS = 100L;
+
+	private final Path directory;
+	private final FileChannel lockChannel;
+	private final Durability durability;
+	private final long fsyncIntervalMillis;
+	private final BlockingQueue<PendingAppend> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private final boolean empty;
+	private final LongAdder appended = new LongAdder();
+	private long appendedAtCheckpoint;
+
+	/** Owned by the writer thread once started. */
+	private FileChannel channel;
+	private volatile long activeSegment;
+	private volatile boolean running = true;
+	private volatile IOException failure;
+
+	private WriteAheadLog(Path directory, FileChannel lockChannel, Durability durability, long fsyncIntervalMillis,
+			FileChannel channel, long activeSegment, boolean empty) {
+		this.directory = directory;
+		this.lockChannel = lockChannel;
+		this.durability = durability;
+		this.fsyncIntervalMillis = fsyncIntervalMillis;
+		this.channel = channel;
+		this.activeSegment = activeSegment;
+		this.empty = empty;
+		this.writer = new Thread(this::writeLoop, "identity-wal-writer");
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Locks directory, opens the log in it, repairing a torn tail, and starts the writer thread.
+	 *
+	 * @param directory
+	 * @param durability
+	 * @param fsyncIntervalMillis used by Durability.INTERVAL
+	 * @return write-ahead log
+	 * @throws IOException also if another log holds the directory
+	 */
+	public static WriteAheadLog open(Path directory, Durability durability, long fsyncIntervalMillis)
+			throws IOException {
+		Files.createDirectories(directory);
+		FileChannel lockChannel = lock(directory);
+		try {
+			return open(directory, lockChannel, durability, fsyncIntervalMillis);
+		} catch (IOException | RuntimeException e) {
+			lockChannel.close();
+			throw e;
+		}
+	}
+
+	private static WriteAheadLog open(Path directory, FileChannel lockChannel, Durability durability,
+			long fsyncIntervalMillis) throws IOException {
+		SnapshotFile.deleteIncomplete(directory);
+		List<Path> snapshots = SnapshotFile.list(directory);
+		long firstSegment = snapshots.isEmpty() ? 1L : SnapshotFile.segmentOf(snapshots.get(snapshots.size() - 1));
+		deleteCoveredFiles(directory, firstSegment);
+
+		List<Path> segments = listSegments(directory);
+		long committedBytes = 0L;
+		Path active;
+		if (segments.isEmpty()) {
+			active = directory.resolve(segmentName(firstSegment));
+		} else {
+			for (int i = 0; i < segments.size() - 1; i++)
+				committedBytes += Files.size(segments.get(i));
+			active = segments.get(segments.size() - 1);
+		}
+
+		FileChannel channel = FileChannel.open(active, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long validBytes = scanValidBytes(active);
+		if (validBytes < channel.size()) {
+			logger.warn("Truncating torn tail of {} from {} to {} bytes", active, channel.size(), validBytes);
+			channel.truncate(validBytes);
+			channel.force(true);
+		}
+		channel.position(validBytes);
+		committedBytes += validBytes;
+
+		WriteAheadLog log = new WriteAheadLog(directory, lockChannel, durability, fsyncIntervalMillis, channel,
+				segmentOf(active), committedBytes == 0L && snapshots.isEmpty());
+		log.writer.start();
+		logger.info("Opened write-ahead log {} ({} bytes, durability {})", active, committedBytes, durability);
+		return log;
+	}
+
+	@Override
+	public EncodedRecords encode(List<JournalRecord> records) {
+		return new EncodedRecords(encodeFrames(records));
+	}
+
+	@Override
+	public CompletableFuture<Void> append(EncodedRecords records) {
+		appended.increment();
+		return enqueue(new PendingAppend(records.frames.duplicate()));
+	}
+
+	private CompletableFuture<Void> enqueue(PendingAppend pending) {
+		if (failure != null) {
+			pending.future.completeExceptionally(failure);
+			return pending.future;
+		}
+		if (!running) {
+			pending.future.completeExceptionally(new IllegalStateException("Write-ahead log is closed."));
+			return pending.future;
+		}
+		queue.add(pending);
+		// Lost a race with close(): withdraw the append unless someone already took it.
+		if (!running && queue.remove(pending))
+			pending.future.completeExceptionally(new IllegalStateException("Write-ahead log is closed."));
+		return pending.future;
+	}
+
+	@Override
+	public void replay(Consumer<JournalRecord> handler) throws IOException {
+		long firstSegment = 0L;
+		List<Path> snapshots = SnapshotFile.list(directory);
+		if (!snapshots.isEmpty()) {
+			Path snapshot = snapshots.get(snapshots.size() - 1);
+			long start = System.nanoTime();
+			handler.accept(JournalRecord.clear());
+			long users = SnapshotFile.load(snapshot, user -> handler.accept(JournalRecord.save(user)));
+			firstSegment = SnapshotFile.segmentOf(snapshot);
+			logger.info("Loaded snapshot {} with {} users in {} ms", snapshot.getFileName(), users,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+
+		long start = System.nanoTime();
+		long replayedSegments = 0L;
+		for (Path segment : listSegments(directory)) {
+			if (segmentOf(segment) < firstSegment)
+				continue;
+			try (InputStream in = Files.newInputStream(segment)) {
+				readFrames(in, handler);
+			}
+			replayedSegments++;
+		}
+		logger.info("Replayed {} journal segments in {} ms", replayedSegments,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Writes a snapshot of users and discards the log segments and snapshots it
+	 * supersedes. Appends continue while the snapshot is written. Does nothing
+	 * when nothing was appended since the last checkpoint.
+	 *
+	 * @param users live view of the store, iterated once
+	 * @return true if a snapshot was written
+	 * @throws IOException
+	 */
+	@Override
+	public synchronized boolean checkpoint(Iterable<User> users) throws IOException {
+		long appendedNow = appended.sum();
+		if (appendedNow == appendedAtCheckpoint)
+			return false;
+
+		PendingAppend rotation = new PendingAppend(null);
+		try {
+			enqueue(rotation).join();
+		} catch (CompletionException e) {
+			throw new IOException("Could not start a new journal segment", e.getCause());
+		}
+		long segment = rotation.segment;
+
+		long start = System.nanoTime();
+		long count = SnapshotFile.write(directory, segment, users);
+		deleteCoveredFiles(directory, segment);
+		appendedAtCheckpoint = appendedNow;
+		logger.info("Wrote snapshot {} with {} users in {} ms", SnapshotFile.fileName(segment), count,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return true;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		rejectQueued();
+		try {
+			channel.force(true);
+			channel.close();
+		} finally {
+			lockChannel.close();
+		}
+	}
+
+	/*
+	 * Takes the directory lock; the lock goes away with the returned channel.
+	 */
+	private static FileChannel lock(Path directory) throws IOException {
+		FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		} catch (IOException | RuntimeException e) {
+			lockChannel.close();
+			throw e;
+		}
+		if (lock == null) {
+			lockChannel.close();
+			throw new IOException(String.format("Write-ahead log directory %s is in use by another instance.",
+					directory.toAbsolutePath()));
+		}
+		return lockChannel;
+	}
+
+	private void writeLoop() {
+		List<PendingAppend> batch = new ArrayList<>(MAX_BATCH);
+		long pollMillis = durability == Durability.INTERVAL ? fsyncIntervalMillis : IDLE_POLL_MILLIS;
+		long lastForce = System.nanoTime();
+		boolean unforced = false;
+		while ((running || !queue.isEmpty()) && failure == null) {
+			try {
+				PendingAppend first = queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+					int from = 0;
+					for (int i = 0; i < batch.size(); i++) {
+						if (batch.get(i).frames == null) {
+							write(batch.subList(from, i));
+							batch.get(i).segment = rotateSegment();
+							from = i + 1;
+						}
+					}
+					write(batch.subList(from, batch.size()));
+					unforced = true;
+					if (durability == Durability.BATCH) {
+						channel.force(false);
+						unforced = false;
+						lastForce = System.nanoTime();
+					}
+					batch.forEach(p -> p.future.complete(null));
+				}
+				if (durability == Durability.INTERVAL && unforced
+						&& System.nanoTime() - lastForce >= TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis)) {
+					channel.force(false);
+					unforced = false;
+					lastForce = System.nanoTime();
+				}
+			} catch (IOException e) {
+				logger.error("Write-ahead log failed, rejecting further mutations", e);
+				failure = e;
+				batch.forEach(p -> p.future.completeExceptionally(e));
+				running = false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+			} finally {
+				batch.clear();
+			}
+		}
+		rejectQueued();
+	}
+
+	/*
+	 * Anything still queued after a failure or close is rejected rather than left hanging.
+	 */
+	private void rejectQueued() {
+		PendingAppend leftover;
+		while ((leftover = queue.poll()) != null)
+			leftover.future.completeExceptionally(
+					failure != null ? failure : new IllegalStateException("Write-ahead log is closed."));
+	}
+
+	/*
+	 * Seals the active segment and starts the next one. Writer thread only.
+	 */
+	private long rotateSegment() throws IOException {
+		channel.force(true);
+		channel.close();
+		long next = activeSegment + 1;
+		channel = FileChannel.open(directory.resolve(segmentName(next)), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		SnapshotFile.syncDirectory(directory);
+		activeSegment = next;
+		return next;
+	}
+
+	private void write(List<PendingAppend> batch) throws IOException {
+		if (batch.isEmpty())
+			return;
+		ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+		long remaining = 0L;
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = batch.get(i).frames;
+			remaining += buffers[i].remaining();
+		}
+		while (remaining > 0)
+			remaining -= channel.write(buffers);
+	}
+
+	/*
+	 * Serializes the records on the calling thread, so that later changes to the
+	 * appended users do not leak into the log.
+	 */
+	private static ByteBuffer encodeFrames(List<JournalRecord> records) {
+		try {
+			ByteArrayOutputStream frames = new ByteArrayOutputStream(128 * records.size());
+			DataOutputStream framesOut = new DataOutputStream(frames);
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+			DataOutputStream payloadOut = new DataOutputStream(payload);
+			CRC32 crc = new CRC32();
+			for (JournalRecord record : records) {
+				payload.reset();
+				UserRecordCodec.writeRecord(payloadOut, record);
+				crc.reset();
+				crc.update(payload.toByteArray(), 0, payload.size());
+				framesOut.writeInt(payload.size());
+				framesOut.writeInt((int) crc.getValue());
+				payload.writeTo(framesOut);
+			}
+			return ByteBuffer.wrap(frames.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/*
+	 * Reads frames until the end of the stream or the first torn or corrupt frame.
+	 *
+	 * @return number of bytes of complete, valid frames
+	 */
+	private static long readFrames(InputStream stream, Consumer<JournalRecord> handler) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		CRC32 crc = new CRC32();
+		long valid = 0L;
+		while (true) {
+			byte[] payload;
+			int expectedCrc;
+			try {
+				int length = in.readInt();
+				expectedCrc = in.readInt();
+				if (length < 0)
+					return valid;
+				payload = new byte[length];
+				in.readFully(payload);
+			} catch (EOFException e) {
+				return valid;
+			}
+			crc.reset();
+			crc.update(payload, 0, payload.length);
+			if ((int) crc.getValue() != expectedCrc)
+				return valid;
+			if (handler != null)
+				handler.accept(UserRecordCodec.readRecord(new DataInputStream(new ByteArrayInputStream(payload))));
+			valid += FRAME_HEADER_BYTES + payload.length;
+		}
+	}
+
+	private static long scanValidBytes(Path segment) throws IOException {
+		try (InputStream in = Files.newInputStream(segment)) {
+			return readFrames(in, null);
+		}
+	}
+
+	static List<Path> listSegments(Path directory) throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			stream.forEach(segments::add);
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/*
+	 * Deletes journal segments and snapshots older than the snapshot of firstSegment.
+	 */
+	private static void deleteCoveredFiles(Path directory, long firstSegment) throws IOException {
+		for (Path segment : listSegments(directory))
+			if (segmentOf(segment) < firstSegment)
+				Files.delete(segment);
+		for (Path snapshot : SnapshotFile.list(directory))
+			if (SnapshotFile.segmentOf(snapshot) < firstSegment)
+				Files.delete(snapshot);
+	}
+
+	static long segmentOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	static String segmentName(long segment) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX);
+	}
+
+	/*
+	 * Frames to append, or a segment rotation request when frames is null.
+	 */
+	private static final class PendingAppend {
+		private final ByteBuffer frames;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+		private volatile long segment;
+
+		private PendingAppend(ByteBuffer frames) {
+			this.frames = frames;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.identityservice.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.web.authentication.preauth.PreAuthenticatedAuthenticationToken;
+import org.springframework.stereotype.Component;
+
+/*
+ * Issues and verifies short-lived, HMAC-SHA256 signed access tokens.
+ * 
+ * A token is base64url(payload) "." base64url(signature), the payload holding
+ * the userName, its roles, and issue and expiry times. Verification is pure
+ * CPU work: no store lookup. Tokens are honored until they expire unless the
+ * user was revoked after the token was issued; revocations are kept only for
+ * as long as a token issued before them could still be valid.
+ * 
+ * Without a configured secret, a random one is generated at startup and
+ * tokens do not survive a restart.
+ * 
+ */
+@Component
+public class AccessTokenService {
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	private static final byte VERSION = 1;
+
+	private final SecretKeySpec key;
+	private final ThreadLocal<Mac> macs;
+	private final long ttlMillis;
+	/** userName to the time its tokens were revoked. */
+	private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+	/** Tokens issued at or before this time are rejected for every user. */
+	private volatile long revokedAllAt = Long.MIN_VALUE;
+
+	/**
+	 * @param secret     base64 signing key shared by every instance, or empty to generate one
+	 * @param ttlSeconds lifetime of an issued token
+	 */
+	public AccessTokenService(@Value("${identityservice.security.token.secret:}") String secret,
+			@Value("${identityservice.security.token.ttl-seconds:900}") long ttlSeconds) {
+		byte[] keyBytes;
+		if (secret.trim().isEmpty()) {
+			keyBytes = new byte[32];
+			new SecureRandom().nextBytes(keyBytes);
+		} else
+			keyBytes = Base64.getDecoder().decode(secret.trim());
+		this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+		this.macs = ThreadLocal.withInitial(this::newMac);
+		this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+	}
+
+	public long getTtlSeconds() {
+		return TimeUnit.MILLISECONDS.toSeconds(ttlMillis);
+	}
+
+	/**
+	 * @param authentication an authenticated caller
+	 * @return a signed token carrying the caller's userName and authorities
+	 */
+	public String issue(Authentication authentication) {
+		long now = System.currentTimeMillis();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(VERSION);
+			out.writeUTF(authentication.getName());
+			Collection<? extends GrantedAuthority> authorities = authentication.getAuthorities();
+			out.writeByte(authorities.size());
+			for (GrantedAuthority authority : authorities)
+				out.writeUTF(authority.getAuthority());
+			out.writeLong(now);
+			out.writeLong(now + ttlMillis);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] payload = bytes.toByteArray();
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		return encoder.encodeToString(payload) + "." + encoder.encodeToString(sign(payload));
+	}
+
+	/**
+	 * @param token
+	 * @return the authenticated caller, or null if the token is malformed,
+	 *         forged, expired or revoked
+	 */
+	public Authentication verify(String token) {
+		int dot = token.indexOf('.');
+		if (dot <= 0)
+			return null;
+		byte[] payload;
+		byte[] signature;
+		try {
+			Base64.Decoder decoder = Base64.getUrlDecoder();
+			payload = decoder.decode(token.substring(0, dot));
+			signature = decoder.decode(token.substring(dot + 1));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (!MessageDigest.isEqual(sign(payload), signature))
+			return null;
+
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+			if (in.readByte() != VERSION)
+				return null;
+			String userName = in.readUTF();
+			int count = in.readUnsignedByte();
+			List<String> roles = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				roles.add(in.readUTF());
+			long issuedAt = in.readLong();
+			long expiresAt = in.readLong();
+			if (System.currentTimeMillis() >= expiresAt || isRevoked(userName, issuedAt))
+				return null;
+
+			List<GrantedAuthority> authorities = AuthorityUtils.createAuthorityList(roles.toArray(new String[0]));
+			User principal = new User(userName, "", authorities);
+			return new PreAuthenticatedAuthenticationToken(principal, null, authorities);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Rejects every token of the user issued until now, e.g. when it is
+	 * deactivated, deleted or its password changes.
+	 * 
+	 * @param userName
+	 */
+	public void revoke(String userName) {
+		long now = System.currentTimeMillis();
+		revoked.put(userName, now);
+		revoked.values().removeIf(at -> now - at > ttlMillis);
+	}
+
+	public void revokeAll() {
+		revokedAllAt = System.currentTimeMillis();
+		revoked.clear();
+	}
+
+	public int revokedCount() {
+		return revoked.size();
+	}
+
+	private boolean isRevoked(String userName, long issuedAt) {
+		if (issuedAt <= revokedAllAt)
+			return true;
+		Long revokedAt = revoked.get(userName);
+		return revokedAt != null && issuedAt <= revokedAt;
+	}
+
+	private byte[] sign(byte[] payload) {
+		return macs.get().doFinal(payload);
+	}
+
+	private Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(key);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.identityservice.security;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.stereotype.Component;
+
+/*
+ * Remembers successful authentications for a short time so that repeat
+ * callers skip the credential lookup and password hash.
+ * 
+ * Entries are keyed by an HMAC of userName and password under a key generated
+ * at startup, so neither the plaintext nor a reusable hash is ever held. The
+ * cache is bounded by max-entries and entries expire after ttl-ms. Every
+ * invalidation bumps an epoch, and an authentication that started before the
+ * bump is not cached, so a deactivated user cannot be re-cached by a request
+ * that was already in flight.
+ * 
+ */
+@Component
+public class AuthenticationCache {
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	private final Map<ByteBuffer, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong epoch = new AtomicLong();
+	private final SecretKeySpec key;
+	private final ThreadLocal<Mac> macs;
+	private final long ttlNanos;
+	private final int maxEntries;
+
+	/**
+	 * @param ttlMillis  how long a successful authentication is reused, 0 disables the cache
+	 * @param maxEntries
+	 */
+	public AuthenticationCache(@Value("${identityservice.security.auth-cache.ttl-ms:60000}") long ttlMillis,
+			@Value("${identityservice.security.auth-cache.max-entries:10000}") int maxEntries) {
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		this.key = new SecretKeySpec(secret, HMAC_ALGORITHM);
+		this.macs = ThreadLocal.withInitial(this::newMac);
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param userName
+	 * @param password
+	 * @return the cached authentication, or null
+	 */
+	public Entry get(String userName, String password) {
+		if (ttlNanos <= 0)
+			return null;
+		ByteBuffer digest = digest(userName, password);
+		Entry entry = entries.get(digest);
+		if (entry == null)
+			return null;
+		if (System.nanoTime() - entry.expiresAt > 0) {
+			entries.remove(digest, entry);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Caches a successful authentication, unless an invalidation happened after
+	 * startEpoch was read.
+	 * 
+	 * @param userName
+	 * @param password
+	 * @param principal
+	 * @param authorities
+	 * @param startEpoch epoch() read before the authentication started
+	 */
+	public void put(String userName, String password, Object principal,
+			Collection<? extends GrantedAuthority> authorities, long startEpoch) {
+		if (ttlNanos <= 0 || epoch.get() != startEpoch)
+			return;
+		if (entries.size() >= maxEntries)
+			evict();
+		ByteBuffer digest = digest(userName, password);
+		entries.put(digest, new Entry(userName, principal, authorities, System.nanoTime() + ttlNanos));
+		if (epoch.get() != startEpoch)
+			entries.remove(digest);
+	}
+
+	public long epoch() {
+		return epoch.get();
+	}
+
+	/**
+	 * Drops every cached authentication of the user, e.g. when it is deactivated,
+	 * deleted or its password changes.
+	 * 
+	 * @param userName
+	 */
+	public void invalidate(String userName) {
+		epoch.incrementAndGet();
+		entries.values().removeIf(e -> e.userName.equals(userName));
+	}
+
+	public void invalidateAll() {
+		epoch.incrementAndGet();
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/*
+	 * Makes room by dropping expired entries, then arbitrary ones down to 90% of
+	 * the bound.
+	 */
+	private void evict() {
+		long now = System.nanoTime();
+		entries.values().removeIf(e -> now - e.expiresAt > 0);
+		Iterator<Entry> it = entries.values().iterator();
+		while (entries.size() >= maxEntries * 9 / 10 && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private ByteBuffer digest(String userName, String password) {
+		Mac mac = macs.get();
+		mac.update(userName.getBytes(StandardCharsets.UTF_8));
+		mac.update((byte) 0);
+		return ByteBuffer.wrap(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(key);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+		}
+	}
+
+	public static final class Entry {
+		private final String userName;
+		private final Object principal;
+		private final Collection<? extends GrantedAuthority> authorities;
+		private final long expiresAt;
+
+		private Entry(String userName, Object principal, Collection<? extends GrantedAuthority> authorities,
+				long expiresAt) {
+			this.userName = userName;
+			this.principal = principal;
+			this.authorities = authorities;
+			this.expiresAt = expiresAt;
+		}
+
+		public Object getPrincipal() {
+			return principal;
+		}
+
+		public Collection<? extends GrantedAuthority> getAuthorities() {
+			return authorities;
+		}
+	}
+}
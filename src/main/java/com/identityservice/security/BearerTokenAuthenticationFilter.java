@@ -0,0 +1,57 @@
+package com.identityservice.security;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.AuthenticationEntryPoint;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/*
+ * Authenticates "Authorization: Bearer <token>" requests from the token alone,
+ * ahead of Basic authentication. Requests without a bearer token pass through
+ * untouched; an invalid one is answered by the entry point with 401.
+ * 
+ * Not a bean, so that Spring Boot does not also register it as a servlet filter.
+ * 
+ */
+public class BearerTokenAuthenticationFilter extends OncePerRequestFilter {
+
+	private static final String BEARER_PREFIX = "Bearer ";
+
+	private final AccessTokenService accessTokenService;
+	private final AuthenticationEntryPoint authenticationEntryPoint;
+
+	public BearerTokenAuthenticationFilter(AccessTokenService accessTokenService,
+			AuthenticationEntryPoint authenticationEntryPoint) {
+		this.accessTokenService = accessTokenService;
+		this.authenticationEntryPoint = authenticationEntryPoint;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		String header = request.getHeader(HttpHeaders.AUTHORIZATION);
+		if (header == null || !header.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		Authentication authentication = accessTokenService.verify(header.substring(BEARER_PREFIX.length()).trim());
+		if (authentication == null) {
+			SecurityContextHolder.clearContext();
+			authenticationEntryPoint.commence(request, response,
+					new BadCredentialsException("Invalid, expired or revoked access token"));
+			return;
+		}
+		SecurityContextHolder.getContext().setAuthentication(authentication);
+		chain.doFilter(request, response);
+	}
+}
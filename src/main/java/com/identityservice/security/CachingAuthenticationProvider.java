@@ -0,0 +1,53 @@
+package com.identityservice.security;
+
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+
+/*
+ * Answers repeat username/password authentications from the AuthenticationCache
+ * and hands everything else to the delegate.
+ * 
+ * Not a bean: CustomSecurityConfig registers it with the
+ * AuthenticationManagerBuilder as the only provider.
+ * 
+ */
+public class CachingAuthenticationProvider implements AuthenticationProvider {
+
+	private final AuthenticationCache cache;
+	private final AuthenticationManager delegate;
+
+	public CachingAuthenticationProvider(AuthenticationCache cache, AuthenticationManager delegate) {
+		this.cache = cache;
+		this.delegate = delegate;
+	}
+
+	@Override
+	public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+		String userName = authentication.getName();
+		Object credentials = authentication.getCredentials();
+		if (userName == null || !(credentials instanceof String))
+			return delegate.authenticate(authentication);
+		String password = (String) credentials;
+
+		AuthenticationCache.Entry cached = cache.get(userName, password);
+		if (cached != null) {
+			UsernamePasswordAuthenticationToken result = new UsernamePasswordAuthenticationToken(
+					cached.getPrincipal(), null, cached.getAuthorities());
+			result.setDetails(authentication.getDetails());
+			return result;
+		}
+
+		long epoch = cache.epoch();
+		Authentication result = delegate.authenticate(authentication);
+		cache.put(userName, password, result.getPrincipal(), result.getAuthorities(), epoch);
+		return result;
+	}
+
+	@Override
+	public boolean supports(Class<?> authentication) {
+		return UsernamePasswordAuthenticationToken.class.isAssignableFrom(authentication);
+	}
+}
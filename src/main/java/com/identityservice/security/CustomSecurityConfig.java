@@ -1,41 +1,76 @@
 package com.identityservice.security;
 
+import java.util.Arrays;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetailsService;
-import org.springframework.security.crypto.password.NoOpPasswordEncoder;
+import org.springframework.security.provisioning.InMemoryUserDetailsManager;
+import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
+import org.springframework.security.web.context.SecurityContextPersistenceFilter;
+
+import com.identityservice.audit.AccessLogFilter;
+import com.identityservice.audit.AuditLog;
 
-@SuppressWarnings("deprecation")
 @Configuration
 public class CustomSecurityConfig extends WebSecurityConfigurerAdapter {
 	
 	/** A realm is a credential store that enables identity or role based access control. **/
 	private static String REALM = "IDENTITY_DEMO_REALM";
 	
-	/** Core interface which loads user-specific data. */
+	/** Core interface which loads user-specific data; backed by the user store. */
 	@Autowired
     private UserDetailsService userDetailsService;
 
-	/** InMemoryAuthentication needs this. */
-	@SuppressWarnings("deprecation")
-	@Bean
-	public static NoOpPasswordEncoder passwordEncoder() {
-		return (NoOpPasswordEncoder) NoOpPasswordEncoder.getInstance();
-	}
+	/** Successful authentications reused by CachingAuthenticationProvider; UserController invalidates them. */
+	@Autowired
+	private AuthenticationCache authenticationCache;
+
+	/** Verifies the bearer tokens issued by POST /api/token. */
+	@Autowired
+	private AccessTokenService accessTokenService;
 
-	/** Let's get started with two users and their roles: admin and a generic user. We'll add more later via the REST API. */
+	/** Hashes and verifies passwords on its own pool. */
+	@Autowired
+	private PasswordHashing passwordHashing;
+
+	/** Stores the re-hashed password of a stored user whose hash is outdated. */
+	@Autowired
+	private PasswordUpgradeService passwordUpgradeService;
+
+	/** Receives an access event for every request, including rejected ones. */
+	@Autowired
+	private AuditLog auditLog;
+
+	/**
+	 * Let's get started with two users and their roles: admin and a generic user. We'll add more later via the REST API.
+	 * They are consulted first, so a stored user with the same userName cannot take over their roles.
+	 * Their passwords are plaintext, so their provider does no hashing of its own, not even for unknown users.
+	 * Stored users get their password re-hashed on login when its hash is outdated.
+	 * Both stores sit behind the authentication cache.
+	 */
 	@Autowired
     protected void configureGlobal(AuthenticationManagerBuilder auth) throws Exception {
-		auth.userDetailsService(userDetailsService).passwordEncoder(passwordEncoder());
-		
-        auth.inMemoryAuthentication()
-           .withUser("admin").password("admin").roles("USER", "ADMIN")
-           .and()
-           .withUser("john").password("doe").roles("USER");
+		DaoAuthenticationProvider bootstrapUsers = new DaoAuthenticationProvider();
+		bootstrapUsers.setUserDetailsService(new InMemoryUserDetailsManager(
+				User.withUsername("admin").password("{noop}admin").roles("USER", "ADMIN").build(),
+				User.withUsername("john").password("{noop}doe").roles("USER").build()));
+		bootstrapUsers.setPasswordEncoder(passwordHashing.plaintext());
+
+		DaoAuthenticationProvider storedUsers = new RehashingDaoAuthenticationProvider(passwordHashing,
+				passwordUpgradeService);
+		storedUsers.setUserDetailsService(userDetailsService);
+
+		auth.authenticationProvider(new CachingAuthenticationProvider(authenticationCache,
+				new ProviderManager(Arrays.asList(bootstrapUsers, storedUsers))));
    }
 	
 	/** This is where we assign Role based access to endpoints. It'possible to add other types of authentication here.*/
@@ -45,9 +80,15 @@ public class CustomSecurityConfig extends WebSecurityConfigurerAdapter {
 	  http.csrf().disable()
 	  	.authorizeRequests()
 	  	.antMatchers("/api/admin/user/**").hasRole("ADMIN")
+	  	.antMatchers("/api/admin/metrics").hasRole("ADMIN")
 	  	.antMatchers("/api/user/**").hasRole("USER")
 	  	.anyRequest().authenticated()
-		.and().httpBasic().realmName(REALM).authenticationEntryPoint(getBasicAuthEntryPoint());
+		.and().httpBasic().realmName(REALM).authenticationEntryPoint(getBasicAuthEntryPoint())
+		/** Every request carries Basic credentials or a bearer token, so no session is kept. */
+		.and().sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+		.and().addFilterBefore(new BearerTokenAuthenticationFilter(accessTokenService, getBasicAuthEntryPoint()),
+				BasicAuthenticationFilter.class)
+		.addFilterAfter(new AccessLogFilter(auditLog), SecurityContextPersistenceFilter.class);
  	}
 	
 	/** Basic Authentication entry point is defined. */
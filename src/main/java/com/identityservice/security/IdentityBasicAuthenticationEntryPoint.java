@@ -7,6 +7,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.web.authentication.www.BasicAuthenticationEntryPoint;
 
@@ -15,6 +16,14 @@ public class IdentityBasicAuthenticationEntryPoint extends BasicAuthenticationEn
 	public void commence(final HttpServletRequest request, final HttpServletResponse response,
 			final AuthenticationException authException) throws IOException, ServletException {
 
+		/** Credentials could not be checked right now, e.g. the hashing pool is saturated: not a failed login. */
+		if (authException instanceof AuthenticationServiceException) {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.addHeader("Retry-After", "1");
+			response.getWriter().println("HTTP Status 503 : " + authException.getMessage());
+			return;
+		}
+
 		response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
 		response.addHeader("WWW-Authenticate", "Basic realm=" + getRealmName() + "");
 
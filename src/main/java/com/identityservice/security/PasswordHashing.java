@@ -0,0 +1,374 @@
+package com.identityservice.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.crypto.password.Pbkdf2PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+/*
+ * Password hashing for both stored credentials and authentication.
+ *
+ * Encoded passwords carry their scheme: {bcrypt}<bcrypt hash>,
+ * {pbkdf2:<iterations>}<hex>, or {noop}<plaintext>. A value without a prefix is
+ * a plaintext password from before hashing was introduced.
+ *
+ * Hash and verify work runs on a dedicated pool so that a burst of logins or
+ * bulk creates cannot occupy every request thread's CPU. At most threads +
+ * queue-capacity operations are admitted: requests beyond that are rejected
+ * (503), while bulk work waits for a slot.
+ *
+ * Unless a cost is configured, the work factor is calibrated at startup so
+ * that one hash takes about target-ms on this machine, never below the
+ * algorithm's floor. needsRehash tells which stored values fall short of it.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.identityservice:type=PasswordHashing", description = "Password hashing pool")
+public class PasswordHashing implements PasswordEncoder {
+
+	public static final Logger logger = LoggerFactory.getLogger(PasswordHashing.class);
+
+	public static final String BCRYPT = "bcrypt";
+	public static final String PBKDF2 = "pbkdf2";
+	public static final String NOOP = "noop";
+
+	private static final int MIN_BCRYPT_COST = 10;
+	private static final int MAX_BCRYPT_COST = 20;
+	private static final int MIN_PBKDF2_ITERATIONS = 10_000;
+	private static final int PBKDF2_HASH_WIDTH = 256;
+	private static final String CALIBRATION_PASSWORD = "calibration-password";
+
+	private final String algorithm;
+	private final int cost;
+	private final ThreadPoolExecutor pool;
+	private final Semaphore admissions;
+	private final int capacity;
+	private final LongAdder rejected = new LongAdder();
+	private final BCryptPasswordEncoder bcrypt;
+	private final Map<Integer, Pbkdf2PasswordEncoder> pbkdf2 = new ConcurrentHashMap<>();
+
+	/**
+	 * @param algorithm     bcrypt, pbkdf2 or noop
+	 * @param cost          bcrypt log rounds or pbkdf2 iterations, 0 to calibrate
+	 * @param targetMillis  calibration target for one hash
+	 * @param threads       hashing threads, 0 for one per processor
+	 * @param queueCapacity hashes allowed to wait for a thread
+	 */
+	@Autowired
+	public PasswordHashing(@Value("${identityservice.security.password.algorithm:bcrypt}") String algorithm,
+			@Value("${identityservice.security.password.cost:0}") int cost,
+			@Value("${identityservice.security.password.target-ms:100}") long targetMillis,
+			@Value("${identityservice.security.password.threads:0}") int threads,
+			@Value("${identityservice.security.password.queue-capacity:64}") int queueCapacity) {
+		this.algorithm = algorithm.trim().toLowerCase();
+		if (!BCRYPT.equals(this.algorithm) && !PBKDF2.equals(this.algorithm) && !NOOP.equals(this.algorithm))
+			throw new IllegalArgumentException("Unknown password hashing algorithm: " + algorithm);
+
+		int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		AtomicInteger threadNumber = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				r -> {
+					Thread thread = new Thread(r, "identity-hash-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.pool.allowCoreThreadTimeOut(true);
+		this.capacity = poolSize + queueCapacity;
+		this.admissions = new Semaphore(capacity);
+
+		this.cost = cost > 0 ? cost : calibrate(targetMillis);
+		this.bcrypt = new BCryptPasswordEncoder(BCRYPT.equals(this.algorithm) ? this.cost : MIN_BCRYPT_COST);
+	}
+
+	/**
+	 * Hashes on the pool, waiting for the result.
+	 *
+	 * @throws RejectedExecutionException when the pool is saturated
+	 */
+	@Override
+	public String encode(CharSequence rawPassword) {
+		if (NOOP.equals(algorithm))
+			return prefix(NOOP) + rawPassword;
+		return await(submit(() -> encodeNow(rawPassword.toString()), false));
+	}
+
+	/**
+	 * Encoder for {noop} passwords only, such as those of the built-in accounts.
+	 * It never uses the pool: in particular the user-not-found check
+	 * DaoAuthenticationProvider runs against it is a plain comparison, not a
+	 * second hash on top of the one the stored users' provider does.
+	 */
+	public PasswordEncoder plaintext() {
+		return new PasswordEncoder() {
+			@Override
+			public String encode(CharSequence rawPassword) {
+				return prefix(NOOP) + rawPassword;
+			}
+
+			@Override
+			public boolean matches(CharSequence rawPassword, String encodedPassword) {
+				return rawPassword != null && NOOP.equals(idOf(encodedPassword))
+						&& constantTimeEquals(rawPassword.toString(), encodedPassword.substring(NOOP.length() + 2));
+			}
+		};
+	}
+
+	/**
+	 * Hashes many passwords in parallel on the pool, waiting for free slots
+	 * rather than failing when it is busy.
+	 *
+	 * @param rawPasswords
+	 * @return encoded passwords, in the same order
+	 */
+	public List<String> encodeAll(List<String> rawPasswords) {
+		if (NOOP.equals(algorithm)) {
+			List<String> encoded = new ArrayList<>(rawPasswords.size());
+			rawPasswords.forEach(raw -> encoded.add(prefix(NOOP) + raw));
+			return encoded;
+		}
+		List<CompletableFuture<String>> futures = new ArrayList<>(rawPasswords.size());
+		for (String raw : rawPasswords)
+			futures.add(submit(() -> encodeNow(raw), true));
+		List<String> encoded = new ArrayList<>(rawPasswords.size());
+		futures.forEach(f -> encoded.add(await(f)));
+		return encoded;
+	}
+
+	/**
+	 * @param rawPassword
+	 * @return the hash, computed in the background
+	 * @throws RejectedExecutionException when the pool is saturated
+	 */
+	public CompletableFuture<String> encodeAsync(String rawPassword) {
+		if (NOOP.equals(algorithm))
+			return CompletableFuture.completedFuture(prefix(NOOP) + rawPassword);
+		return submit(() -> encodeNow(rawPassword), false);
+	}
+
+	/**
+	 * Verifies on the pool; plaintext values are compared inline.
+	 *
+	 * @throws AuthenticationServiceException when the pool is saturated
+	 */
+	@Override
+	public boolean matches(CharSequence rawPassword, String encodedPassword) {
+		if (rawPassword == null || encodedPassword == null)
+			return false;
+		String raw = rawPassword.toString();
+		String id = idOf(encodedPassword);
+		if (id == null)
+			return constantTimeEquals(raw, encodedPassword);
+		String body = encodedPassword.substring(id.length() + 2);
+		if (NOOP.equals(id))
+			return constantTimeEquals(raw, body);
+
+		Callable<Boolean> verify;
+		if (BCRYPT.equals(id))
+			verify = () -> bcrypt.matches(raw, body);
+		else if (id.startsWith(PBKDF2 + ":"))
+			verify = () -> pbkdf2(Integer.parseInt(id.substring(PBKDF2.length() + 1))).matches(raw, body);
+		else
+			return false;
+		try {
+			return await(submit(verify, false));
+		} catch (RejectedExecutionException e) {
+			throw new AuthenticationServiceException("Password verification is saturated, please retry later.", e);
+		}
+	}
+
+	/**
+	 * @param encodedPassword
+	 * @return true if the value is plaintext, uses another algorithm, or a lower
+	 *         cost than currently configured
+	 */
+	public boolean needsRehash(String encodedPassword) {
+		String id = idOf(encodedPassword);
+		if (id == null)
+			return true;
+		String body = encodedPassword.substring(id.length() + 2);
+		switch (algorithm) {
+		case BCRYPT:
+			return !BCRYPT.equals(id) || bcryptCost(body) < cost;
+		case PBKDF2:
+			return !id.startsWith(PBKDF2 + ":") || Integer.parseInt(id.substring(PBKDF2.length() + 1)) < cost;
+		default:
+			return !NOOP.equals(id);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	@ManagedAttribute(description = "Algorithm used for new hashes")
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	@ManagedAttribute(description = "bcrypt log rounds or pbkdf2 iterations used for new hashes")
+	public int getCost() {
+		return cost;
+	}
+
+	@ManagedAttribute(description = "Hash or verify operations admitted and not yet finished")
+	public int getPending() {
+		return capacity - admissions.availablePermits();
+	}
+
+	@ManagedAttribute(description = "Threads currently hashing")
+	public int getActiveThreads() {
+		return pool.getActiveCount();
+	}
+
+	@ManagedAttribute(description = "Operations rejected because the pool was saturated")
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/*
+	 * Admits the task, either waiting for a slot or rejecting it when none is free.
+	 */
+	<T> CompletableFuture<T> submit(Callable<T> task, boolean waitForSlot) {
+		if (waitForSlot)
+			admissions.acquireUninterruptibly();
+		else if (!admissions.tryAcquire()) {
+			rejected.increment();
+			throw new RejectedExecutionException("Password hashing is saturated");
+		}
+		CompletableFuture<T> result = new CompletableFuture<>();
+		try {
+			pool.execute(() -> {
+				T value = null;
+				Exception failure = null;
+				try {
+					value = task.call();
+				} catch (Exception e) {
+					failure = e;
+				}
+				/** Free the slot before waking the caller, so that it can submit again straight away. */
+				admissions.release();
+				if (failure == null)
+					result.complete(value);
+				else
+					result.completeExceptionally(failure);
+			});
+		} catch (RejectedExecutionException e) {
+			admissions.release();
+			throw e;
+		}
+		return result;
+	}
+
+	private String encodeNow(String raw) {
+		switch (algorithm) {
+		case BCRYPT:
+			return prefix(BCRYPT) + bcrypt.encode(raw);
+		case PBKDF2:
+			return prefix(PBKDF2 + ":" + cost) + pbkdf2(cost).encode(raw);
+		default:
+			return prefix(NOOP) + raw;
+		}
+	}
+
+	/*
+	 * bcrypt doubles its time per log round: raise the cost while the next one
+	 * still fits the target. pbkdf2 is linear in its iterations.
+	 */
+	private int calibrate(long targetMillis) {
+		int calibrated;
+		long millis;
+		switch (algorithm) {
+		case BCRYPT:
+			calibrated = MIN_BCRYPT_COST;
+			millis = time(() -> new BCryptPasswordEncoder(MIN_BCRYPT_COST).encode(CALIBRATION_PASSWORD));
+			while (calibrated < MAX_BCRYPT_COST && millis * 2 <= targetMillis) {
+				int next = calibrated + 1;
+				millis = time(() -> new BCryptPasswordEncoder(next).encode(CALIBRATION_PASSWORD));
+				calibrated = next;
+			}
+			break;
+		case PBKDF2:
+			long base = Math.max(1L, time(() -> pbkdf2(MIN_PBKDF2_ITERATIONS).encode(CALIBRATION_PASSWORD)));
+			calibrated = (int) Math.max(MIN_PBKDF2_ITERATIONS, Math.min(Integer.MAX_VALUE / 2,
+					MIN_PBKDF2_ITERATIONS * targetMillis / base));
+			millis = base * calibrated / MIN_PBKDF2_ITERATIONS;
+			break;
+		default:
+			return 0;
+		}
+		logger.info("Password hashing: {} with cost {}, about {} ms per hash (target {} ms)", algorithm, calibrated,
+				millis, targetMillis);
+		return calibrated;
+	}
+
+	private static long time(Runnable hash) {
+		hash.run();
+		long start = System.nanoTime();
+		hash.run();
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	private Pbkdf2PasswordEncoder pbkdf2(int iterations) {
+		return pbkdf2.computeIfAbsent(iterations, i -> new Pbkdf2PasswordEncoder("", i, PBKDF2_HASH_WIDTH));
+	}
+
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	private static String prefix(String id) {
+		return "{" + id + "}";
+	}
+
+	private static String idOf(String encoded) {
+		if (encoded == null || !encoded.startsWith("{"))
+			return null;
+		int end = encoded.indexOf('}');
+		return end < 0 ? null : encoded.substring(1, end);
+	}
+
+	private static int bcryptCost(String hash) {
+		try {
+			return Integer.parseInt(hash.substring(4, 6));
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	private static boolean constantTimeEquals(String raw, String expected) {
+		return MessageDigest.isEqual(raw.getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,19 @@
+package com.identityservice.security;
+
+/*
+ * Replaces a stored password hash that PasswordHashing considers outdated.
+ * 
+ */
+public interface PasswordUpgradeService {
+
+	/**
+	 * Stores newHash only if the user's password is still currentHash, so that a
+	 * password changed in the meantime is never overwritten.
+	 * 
+	 * @param userName
+	 * @param currentHash the hash the user just authenticated against
+	 * @param newHash
+	 * @return true if the stored hash was replaced
+	 */
+	boolean upgradePassword(String userName, String currentHash, String newHash);
+}
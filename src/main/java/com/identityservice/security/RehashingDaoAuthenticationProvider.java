@@ -0,0 +1,51 @@
+package com.identityservice.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.UserDetails;
+
+/*
+ * Authenticates stored users and, after a successful login, re-hashes a
+ * password whose stored hash is plaintext or weaker than PasswordHashing's
+ * current algorithm and cost. The re-hash runs on the hashing pool and does
+ * not delay the login; if the pool is busy it is simply tried again next time.
+ * 
+ */
+public class RehashingDaoAuthenticationProvider extends DaoAuthenticationProvider {
+
+	public static final Logger logger = LoggerFactory.getLogger(RehashingDaoAuthenticationProvider.class);
+
+	private final PasswordHashing passwordHashing;
+	private final PasswordUpgradeService upgradeService;
+
+	public RehashingDaoAuthenticationProvider(PasswordHashing passwordHashing, PasswordUpgradeService upgradeService) {
+		this.passwordHashing = passwordHashing;
+		this.upgradeService = upgradeService;
+		setPasswordEncoder(passwordHashing);
+	}
+
+	@Override
+	protected Authentication createSuccessAuthentication(Object principal, Authentication authentication,
+			UserDetails user) {
+		String currentHash = user.getPassword();
+		if (currentHash != null && authentication.getCredentials() != null && passwordHashing.needsRehash(currentHash))
+			rehash(user.getUsername(), authentication.getCredentials().toString(), currentHash);
+		return super.createSuccessAuthentication(principal, authentication, user);
+	}
+
+	private void rehash(String userName, String rawPassword, String currentHash) {
+		try {
+			passwordHashing.encodeAsync(rawPassword).thenAccept(newHash -> {
+				if (upgradeService.upgradePassword(userName, currentHash, newHash))
+					logger.debug("Upgraded the password hash of user {}", userName);
+			}).exceptionally(e -> {
+				logger.warn("Could not upgrade the password hash of user {}", userName, e);
+				return null;
+			});
+		} catch (RuntimeException e) {
+			logger.debug("Password hashing is busy, not upgrading the hash of user {} now", userName);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.identityservice.service;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/*
+ * One ReentrantReadWriteLock for the whole store: every writer excludes every reader.
+ * 
+ */
+final class GlobalStoreLock implements StoreLock {
+
+	private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+	@Override
+	public <T> T readKey(String key, Supplier<T> action) {
+		return readAll(action);
+	}
+
+	@Override
+	public <T> T writeKey(String key, Supplier<T> action) {
+		return writeAll(action);
+	}
+
+	@Override
+	public <T> T readAll(Supplier<T> action) {
+		stateLock.readLock().lock();
+		try {
+			return action.get();
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public <T> T writeAll(Supplier<T> action) {
+		stateLock.writeLock().lock();
+		try {
+			return action.get();
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.identityservice.service;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.identityservice.persistence.IdLeaseStore;
+
+/*
+ * Assigns user ids from blocks leased from an IdLeaseStore.
+ * 
+ * Within a block an id costs one atomic increment; only the thread that
+ * exhausts a block goes back to the lease store for the next one.
+ * 
+ */
+@Component
+public class IdAllocator {
+
+	private final IdLeaseStore leaseStore;
+	private final int blockSize;
+	private volatile Block block = new Block(0L, 0L);
+	/** Lowest id a new block may start at. */
+	private long floor = 1L;
+
+	/**
+	 * @param leaseStore
+	 * @param blockSize ids leased at a time
+	 */
+	@Autowired
+	public IdAllocator(IdLeaseStore leaseStore, @Value("${identityservice.store.id-block-size:1000}") int blockSize) {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("Id block size must be positive: " + blockSize);
+		this.leaseStore = leaseStore;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return an id never returned before
+	 */
+	public long next() {
+		while (true) {
+			Block current = block;
+			long id = current.next.getAndIncrement();
+			if (id < current.end)
+				return id;
+			synchronized (this) {
+				if (block == current)
+					block = lease();
+			}
+		}
+	}
+
+	/**
+	 * Makes sure that ids handed out from now on are greater than the given one,
+	 * e.g. the highest id recovered from the journal.
+	 * 
+	 * @param id
+	 */
+	public synchronized void advancePast(long id) {
+		floor = Math.max(floor, id + 1L);
+		if (block.next.get() <= id)
+			block = lease();
+	}
+
+	/*
+	 * Must be called holding this allocator's monitor.
+	 */
+	private Block lease() {
+		try {
+			long start = leaseStore.lease(floor, blockSize);
+			return new Block(start, start + blockSize);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not lease a block of user ids.", e);
+		}
+	}
+
+	private static final class Block {
+		private final AtomicLong next;
+		private final long end;
+
+		private Block(long start, long end) {
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+}
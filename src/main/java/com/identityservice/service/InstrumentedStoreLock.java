@@ -0,0 +1,81 @@
+package com.identityservice.service;
+
+import java.util.function.Supplier;
+
+import com.identityservice.metrics.LatencyTimer;
+import com.identityservice.metrics.MetricsRegistry;
+
+/*
+ * Records how long each StoreLock operation waits for its lock and how long
+ * write locks are held, by operation (read_key, write_key, read_all, write_all).
+ * 
+ * Wait is measured up to the start of the action, so an optimistic read that
+ * falls back to the read lock records two waits. A lock-free read records
+ * close to nothing.
+ * 
+ */
+final class InstrumentedStoreLock implements StoreLock {
+
+	static final String WAIT = "identity_store_lock_wait_seconds";
+	static final String HOLD = "identity_store_lock_hold_seconds";
+	private static final String WAIT_HELP = "Time spent waiting for the user store lock, by operation.";
+	private static final String HOLD_HELP = "Time the user store write locks were held, by operation.";
+
+	private final StoreLock delegate;
+	private final LatencyTimer readKeyWait;
+	private final LatencyTimer writeKeyWait;
+	private final LatencyTimer readAllWait;
+	private final LatencyTimer writeAllWait;
+	private final LatencyTimer writeKeyHold;
+	private final LatencyTimer writeAllHold;
+
+	InstrumentedStoreLock(StoreLock delegate, MetricsRegistry registry) {
+		this.delegate = delegate;
+		this.readKeyWait = registry.timer(WAIT, WAIT_HELP, "operation", "read_key");
+		this.writeKeyWait = registry.timer(WAIT, WAIT_HELP, "operation", "write_key");
+		this.readAllWait = registry.timer(WAIT, WAIT_HELP, "operation", "read_all");
+		this.writeAllWait = registry.timer(WAIT, WAIT_HELP, "operation", "write_all");
+		this.writeKeyHold = registry.timer(HOLD, HOLD_HELP, "operation", "write_key");
+		this.writeAllHold = registry.timer(HOLD, HOLD_HELP, "operation", "write_all");
+	}
+
+	@Override
+	public <T> T readKey(String key, Supplier<T> action) {
+		long start = System.nanoTime();
+		return delegate.readKey(key, () -> {
+			readKeyWait.recordSince(start);
+			return action.get();
+		});
+	}
+
+	@Override
+	public <T> T writeKey(String key, Supplier<T> action) {
+		long start = System.nanoTime();
+		return delegate.writeKey(key, () -> timeHeld(start, writeKeyWait, writeKeyHold, action));
+	}
+
+	@Override
+	public <T> T readAll(Supplier<T> action) {
+		long start = System.nanoTime();
+		return delegate.readAll(() -> {
+			readAllWait.recordSince(start);
+			return action.get();
+		});
+	}
+
+	@Override
+	public <T> T writeAll(Supplier<T> action) {
+		long start = System.nanoTime();
+		return delegate.writeAll(() -> timeHeld(start, writeAllWait, writeAllHold, action));
+	}
+
+	private static <T> T timeHeld(long start, LatencyTimer wait, LatencyTimer hold, Supplier<T> action) {
+		long acquired = System.nanoTime();
+		wait.record(acquired - start);
+		try {
+			return action.get();
+		} finally {
+			hold.recordSince(acquired);
+		}
+	}
+}
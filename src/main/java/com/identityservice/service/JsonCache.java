@@ -0,0 +1,89 @@
+package com.identityservice.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * Full JSON of recently read users, so that repeat reads of a user skip
+ * Jackson.
+ *
+ * Entries are keyed by user id and hold the version they were rendered from; a
+ * record of another version renders afresh and replaces the entry. The cache
+ * is bounded by max-entries. StoreFootprintTest at 1M users: a record takes
+ * about 360 bytes and an entry here about 390, so caching every user would
+ * double the store, while the default 100000 entries add about 39 MB.
+ *
+ */
+final class JsonCache {
+
+	private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+	private final ObjectMapper objectMapper;
+	private final int maxEntries;
+
+	/**
+	 * @param objectMapper
+	 * @param maxEntries   0 disables the cache
+	 */
+	JsonCache(ObjectMapper objectMapper, int maxEntries) {
+		this.objectMapper = objectMapper;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param record
+	 * @return JSON of the record, shared: callers must not modify it
+	 */
+	byte[] render(UserRecord record) {
+		Entry entry = entries.get(record.id);
+		if (entry != null && entry.version == record.version)
+			return entry.json;
+		byte[] json = record.toJson(objectMapper);
+		if (maxEntries > 0) {
+			if (entries.size() >= maxEntries)
+				evict();
+			entries.put(record.id, new Entry(record.version, json));
+		}
+		return json;
+	}
+
+	/**
+	 * Drops the JSON of a user that was replaced or deleted.
+	 *
+	 * @param id
+	 */
+	void remove(long id) {
+		entries.remove(id);
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/*
+	 * Makes room by dropping arbitrary entries down to 90% of the bound.
+	 */
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (entries.size() >= maxEntries * 9 / 10 && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private static final class Entry {
+		private final long version;
+		private final byte[] json;
+
+		private Entry(long version, byte[] json) {
+			this.version = version;
+			this.json = json;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.identityservice.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/*
+ * Thread pool for asynchronous user lookups, kept apart from the JVM-wide
+ * common ForkJoinPool so that a lookup spike cannot starve other work.
+ * 
+ * The queue is bounded: once it is full, execute throws
+ * RejectedExecutionException, which the API reports as 503. Pool and queue
+ * figures are exported over JMX.
+ * 
+ * Delayed lookups wait on a single timer thread rather than sleeping in the
+ * pool, so pending delays cost a queue entry each and no thread. Once due, the
+ * timer only hands the lookup to the pool, where it is bounded and counted
+ * like any other lookup.
+ * 
+ */
+@Component
+@ManagedResource(objectName = "com.identityservice:type=LookupExecutor", description = "Asynchronous user lookup pool")
+public class LookupExecutor implements Executor {
+
+	private final ThreadPoolExecutor pool;
+	private final ScheduledThreadPoolExecutor timer;
+	private final int queueCapacity;
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param threads       maximum number of lookup threads
+	 * @param queueCapacity lookups allowed to wait for a thread before new ones
+	 *                      are rejected
+	 */
+	@Autowired
+	public LookupExecutor(@Value("${identityservice.lookup.threads:8}") int threads,
+			@Value("${identityservice.lookup.queue-capacity:1000}") int queueCapacity) {
+		AtomicInteger threadNumber = new AtomicInteger();
+		this.queueCapacity = queueCapacity;
+		this.pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread thread = new Thread(r, "identity-lookup-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, (r, executor) -> {
+					rejected.increment();
+					throw new RejectedExecutionException(
+							String.format("Lookup queue is full (%d pending)", executor.getQueue().size()));
+				});
+		this.pool.allowCoreThreadTimeOut(true);
+		this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "identity-lookup-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timer.setRemoveOnCancelPolicy(true);
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		pool.execute(command);
+	}
+
+	/**
+	 * Submits the lookup to the pool once the delay has elapsed. Cancelling the
+	 * returned future removes its pending timer, or skips the lookup if it is
+	 * already queued.
+	 * 
+	 * @param lookup
+	 * @param delayMillis
+	 * @return the lookup's result; fails with RejectedExecutionException if the
+	 *         queue is full when the delay has elapsed
+	 */
+	public <T> CompletableFuture<T> supplyDelayed(Supplier<T> lookup, long delayMillis) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		ScheduledFuture<?> pending = timer.schedule(() -> {
+			try {
+				execute(() -> {
+					if (result.isDone())
+						return;
+					try {
+						result.complete(lookup.get());
+					} catch (RuntimeException e) {
+						result.completeExceptionally(e);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				result.completeExceptionally(e);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+		result.whenComplete((value, e) -> pending.cancel(false));
+		return result;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		timer.shutdownNow();
+		pool.shutdownNow();
+	}
+
+	@ManagedAttribute(description = "Lookups waiting for a thread")
+	public int getQueueDepth() {
+		return pool.getQueue().size();
+	}
+
+	@ManagedAttribute(description = "Maximum number of waiting lookups")
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	@ManagedAttribute(description = "Threads currently running a lookup")
+	public int getActiveThreads() {
+		return pool.getActiveCount();
+	}
+
+	@ManagedAttribute(description = "Threads currently in the pool")
+	public int getPoolSize() {
+		return pool.getPoolSize();
+	}
+
+	@ManagedAttribute(description = "Maximum number of threads")
+	public int getMaxPoolSize() {
+		return pool.getMaximumPoolSize();
+	}
+
+	@ManagedAttribute(description = "Delayed lookups waiting for their timer")
+	public int getPendingDelayedLookups() {
+		return timer.getQueue().size();
+	}
+
+	@ManagedAttribute(description = "Lookups completed since startup")
+	public long getCompletedLookups() {
+		return pool.getCompletedTaskCount();
+	}
+
+	@ManagedAttribute(description = "Lookups rejected because the queue was full")
+	public long getRejectedLookups() {
+		return rejected.sum();
+	}
+}
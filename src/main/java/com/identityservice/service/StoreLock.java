@@ -0,0 +1,58 @@
+package com.identityservice.service;
+
+import java.util.function.Supplier;
+
+/*
+ * Concurrency strategy for the user store.
+ * 
+ * Single-user operations are keyed by userName; whole-map operations
+ * (listing, clearing) go through readAll/writeAll.
+ * 
+ */
+interface StoreLock {
+
+	/**
+	 * @param key
+	 * @param action
+	 * @return result of the action
+	 */
+	<T> T readKey(String key, Supplier<T> action);
+
+	/**
+	 * @param key
+	 * @param action
+	 * @return result of the action
+	 */
+	<T> T writeKey(String key, Supplier<T> action);
+
+	/**
+	 * The action may run more than once and must not have side effects.
+	 * 
+	 * @param action
+	 * @return result of the action
+	 */
+	<T> T readAll(Supplier<T> action);
+
+	/**
+	 * @param action
+	 * @return result of the action
+	 */
+	<T> T writeAll(Supplier<T> action);
+
+	/**
+	 * Selects the StoreLock implementation by configuration name.
+	 * 
+	 * @param mode global or striped
+	 * @return store lock
+	 */
+	static StoreLock forMode(String mode) {
+		switch (mode.trim().toLowerCase()) {
+		case "global":
+			return new GlobalStoreLock();
+		case "striped":
+			return new StripedStoreLock();
+		default:
+			throw new IllegalArgumentException(String.format("Unknown store concurrency mode: %s", mode));
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.identityservice.service;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/*
+ * Striped writers with lock-free and optimistic readers.
+ * 
+ * - single-user reads take no lock, the underlying maps are concurrent.
+ * - single-user writes hold the stripe of their key plus a shared stamp, so
+ *   writers on different keys never block each other.
+ * - whole-map reads are optimistic: they only retry under the read stamp if
+ *   a whole-map write happened meanwhile.
+ * - whole-map writes take the exclusive stamp, which waits for in-flight
+ *   single-user writes to drain.
+ * 
+ */
+final class StripedStoreLock implements StoreLock {
+
+	private static final int DEFAULT_STRIPES = 64;
+
+	private final StampedLock mapLock = new StampedLock();
+	private final ReentrantLock[] stripes;
+	private final int mask;
+
+	StripedStoreLock() {
+		this(DEFAULT_STRIPES);
+	}
+
+	StripedStoreLock(int stripeCount) {
+		int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+		this.stripes = new ReentrantLock[size];
+		for (int i = 0; i < size; i++)
+			stripes[i] = new ReentrantLock();
+		this.mask = size - 1;
+	}
+
+	@Override
+	public <T> T readKey(String key, Supplier<T> action) {
+		return action.get();
+	}
+
+	@Override
+	public <T> T writeKey(String key, Supplier<T> action) {
+		long stamp = mapLock.readLock();
+		try {
+			ReentrantLock stripe = stripeFor(key);
+			stripe.lock();
+			try {
+				return action.get();
+			} finally {
+				stripe.unlock();
+			}
+		} finally {
+			mapLock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public <T> T readAll(Supplier<T> action) {
+		long stamp = mapLock.tryOptimisticRead();
+		if (stamp != 0L) {
+			T result = action.get();
+			if (mapLock.validate(stamp))
+				return result;
+		}
+		stamp = mapLock.readLock();
+		try {
+			return action.get();
+		} finally {
+			mapLock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public <T> T writeAll(Supplier<T> action) {
+		long stamp = mapLock.writeLock();
+		try {
+			return action.get();
+		} finally {
+			mapLock.unlockWrite(stamp);
+		}
+	}
+
+	private ReentrantLock stripeFor(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & mask];
+	}
+}
@@ -0,0 +1,246 @@
+package com.identityservice.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.identityservice.dto.Status;
+import com.identityservice.dto.User;
+import com.identityservice.dto.UserField;
+
+/*
+ * Compact, immutable storage form of a user. The User DTO is only built at the API edge.
+ * 
+ * - id and dates are primitives (epoch millis) instead of a boxed Long and two Calendars.
+ * - userName is the very String used as the usersCache key.
+ * - other text is UTF-8; first and last names are shared between users via NAMES.
+ * - the default email (<userName>@identityservice.com) is not stored at all.
+ * - the JSON of the user is not kept here; UserServiceImpl caches a bounded
+ *   number of rendered users in its JsonCache.
+ * 
+ */
+final class UserRecord {
+
+	private static final String EMAIL_DOMAIN = "@identityservice.com";
+	private static final byte NO_STATUS = -1;
+	private static final long NO_DATE = Long.MIN_VALUE;
+	private static final Status[] STATUSES = Status.values();
+	private static final List<GrantedAuthority> USER_AUTHORITIES = AuthorityUtils.createAuthorityList("ROLE_USER");
+
+	/** Deduplicates first/last names; bounded so that unique names cannot grow it forever. */
+	private static final NamePool NAMES = new NamePool(100_000);
+
+	final long id;
+	final String userName;
+	/** Unique to this record: every write installs a record with a new, higher version. */
+	final long version;
+	private final byte[] firstName;
+	private final byte[] lastName;
+	private final byte[] password;
+	private final byte[] email;
+	private final byte status;
+	private final long createMillis;
+	private final long updateMillis;
+
+	private UserRecord(User user, long version) {
+		this.id = user.getId();
+		this.userName = user.getUserName();
+		this.version = version;
+		this.firstName = NAMES.intern(user.getFirstName());
+		this.lastName = NAMES.intern(user.getLastName());
+		this.password = utf8(user.getPassword());
+		this.email = defaultEmail(userName).equals(user.getEmail()) ? null : utf8(user.getEmail());
+		this.status = user.getStatus() == null ? NO_STATUS : (byte) user.getStatus().ordinal();
+		this.createMillis = user.getCreateDate() == null ? NO_DATE : user.getCreateDate().getTimeInMillis();
+		this.updateMillis = user.getUpdateDate() == null ? NO_DATE : user.getUpdateDate().getTimeInMillis();
+	}
+
+	private UserRecord(UserRecord record, long version) {
+		this.id = record.id;
+		this.userName = record.userName;
+		this.version = version;
+		this.firstName = record.firstName;
+		this.lastName = record.lastName;
+		this.password = record.password;
+		this.email = record.email;
+		this.status = record.status;
+		this.createMillis = record.createMillis;
+		this.updateMillis = record.updateMillis;
+	}
+
+	/**
+	 * @param user    with defaults completed
+	 * @param version
+	 * @return record holding a copy of the user's state
+	 */
+	static UserRecord from(User user, long version) {
+		return new UserRecord(user, version);
+	}
+
+	/**
+	 * Lets a record be encoded before the write lock is taken and get its
+	 * version once it is held; the arrays are shared, not copied.
+	 * 
+	 * @param version
+	 * @return the same user under another version
+	 */
+	UserRecord withVersion(long version) {
+		return new UserRecord(this, version);
+	}
+
+	/**
+	 * @param record may be null
+	 * @return a new DTO, or null for a null record
+	 */
+	static User toUserOrNull(UserRecord record) {
+		return record == null ? null : record.toUser();
+	}
+
+	User toUser() {
+		String emailValue = email == null ? defaultEmail(userName) : string(email);
+		return new User(id, string(firstName), string(lastName), userName, string(password), emailValue,
+				status == NO_STATUS ? null : STATUSES[status], calendar(createMillis), calendar(updateMillis))
+						.setVersion(version);
+	}
+
+	/**
+	 * @param objectMapper
+	 * @return JSON of toUser()
+	 */
+	byte[] toJson(ObjectMapper objectMapper) {
+		try {
+			return objectMapper.writeValueAsBytes(toUser());
+		} catch (JsonProcessingException e) {
+			throw new IllegalStateException(String.format("User %s could not be serialized.", userName), e);
+		}
+	}
+
+	/**
+	 * Writes only the selected fields, straight from the record; dates go
+	 * through the ObjectMapper so that they are formatted as in the full JSON.
+	 * 
+	 * @param objectMapper
+	 * @param fields selected fields, null for all
+	 * @return JSON object of the selected fields
+	 */
+	byte[] toJson(ObjectMapper objectMapper, Set<UserField> fields) {
+		if (fields == null)
+			return toJson(objectMapper);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32 * fields.size());
+		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+			generator.writeStartObject();
+			for (UserField field : fields) {
+				generator.writeFieldName(field.getJsonName());
+				switch (field) {
+				case ID:
+					generator.writeNumber(id);
+					break;
+				case FIRST_NAME:
+					generator.writeString(string(firstName));
+					break;
+				case LAST_NAME:
+					generator.writeString(string(lastName));
+					break;
+				case USER_NAME:
+					generator.writeString(userName);
+					break;
+				case PASSWORD:
+					generator.writeString(string(password));
+					break;
+				case EMAIL:
+					generator.writeString(email == null ? defaultEmail(userName) : string(email));
+					break;
+				case STATUS:
+					objectMapper.writeValue(generator, status == NO_STATUS ? null : STATUSES[status]);
+					break;
+				case CREATE_DATE:
+					objectMapper.writeValue(generator, calendar(createMillis));
+					break;
+				case UPDATE_DATE:
+					objectMapper.writeValue(generator, calendar(updateMillis));
+					break;
+				}
+			}
+			generator.writeEndObject();
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format("User %s could not be serialized.", userName), e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return credentials with ROLE_USER, disabled for INACTIVE users, or null
+	 *         when the user has no password to authenticate with
+	 */
+	UserDetails toUserDetailsOrNull() {
+		if (password == null || password.length == 0)
+			return null;
+		boolean enabled = status != Status.INACTIVE.ordinal();
+		return new org.springframework.security.core.userdetails.User(userName, string(password), enabled, true,
+				true, true, USER_AUTHORITIES);
+	}
+
+	/**
+	 * @param encoded
+	 * @return true if the stored password is exactly the given value
+	 */
+	boolean hasPassword(String encoded) {
+		return encoded != null && Arrays.equals(password, utf8(encoded));
+	}
+
+	private static String defaultEmail(String userName) {
+		return userName + EMAIL_DOMAIN;
+	}
+
+	private static byte[] utf8(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(byte[] value) {
+		return value == null ? null : new String(value, StandardCharsets.UTF_8);
+	}
+
+	private static Calendar calendar(long millis) {
+		if (millis == NO_DATE)
+			return null;
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+		return calendar;
+	}
+
+	private static final class NamePool {
+		private final ConcurrentMap<String, byte[]> names = new ConcurrentHashMap<>();
+		private final int capacity;
+
+		private NamePool(int capacity) {
+			this.capacity = capacity;
+		}
+
+		byte[] intern(String name) {
+			if (name == null)
+				return null;
+			byte[] pooled = names.get(name);
+			if (pooled != null)
+				return pooled;
+			byte[] bytes = utf8(name);
+			if (names.size() >= capacity)
+				return bytes;
+			pooled = names.putIfAbsent(name, bytes);
+			return pooled == null ? bytes : pooled;
+		}
+	}
+}
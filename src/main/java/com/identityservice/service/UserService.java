@@ -1,9 +1,15 @@
 package com.identityservice.service;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 
 import com.identityservice.dto.User;
+import com.identityservice.dto.UserField;
+import com.identityservice.exception.UserVersionConflictException;
 
 /*
  * User Identity Service Contract
@@ -22,10 +28,19 @@ public interface UserService {
 	 * @return user
 	 */
 	User findByUserName(String name);
+
+	/**
+	 * Resolves many userNames in a single pass over the store.
+	 * 
+	 * @param names
+	 * @return the users found, keyed by userName in the iteration order of names
+	 */
+	Map<String, User> findByUserNames(Collection<String> names);
 	
 	/**
 	 * @param name
-	 * @return user
+	 * @return user, or null if there is no such user
+	 * @throws java.util.concurrent.RejectedExecutionException when too many lookups are pending
 	 */
 	CompletableFuture<User> findByUserNameAsync(String name);
 	
@@ -33,30 +48,117 @@ public interface UserService {
 	 * This is to demonstrate a delayed request as well as a timeout situation
 	 * 
 	 * @param name
-	 * @return user
+	 * @return user, or null if there is no such user; cancelling it drops the pending delay. Fails with
+	 *         RejectedExecutionException if too many lookups are pending once it is due
 	 */
 	CompletableFuture<User> findByUserNameAsyncDelayed(String userName, long delayInMillis);
 
 	/**
+	 * Creates or replaces the user with this userName. A user without an id
+	 * gets a new one.
+	 * 
 	 * @param user
 	 */
 	void saveUser(User user);
 
+	/**
+	 * Creates every user whose userName is not taken yet, under one store lock
+	 * acquisition and one journal commit. Created users get a new id.
+	 * 
+	 * @param users
+	 * @return for each user, in order, true if it was created, false if its userName already existed
+	 */
+	List<Boolean> saveNewUsers(List<User> users);
+
 	/**
 	 * @param user
 	 */
 	void updateUser(User user);
 
+	/**
+	 * Compare-and-set update: replaces the stored user only if it is still at
+	 * expectedVersion. On success the user's version is set to the new one.
+	 * 
+	 * @param user
+	 * @param expectedVersion version the update was based on
+	 * @throws UserVersionConflictException if the user changed or was deleted meanwhile
+	 */
+	void updateUser(User user, long expectedVersion);
+
 	/**
 	 * @param id
+	 * @return false if there was no user with that id
 	 */
-	void deleteUserById(long id);
+	boolean deleteUserById(long id);
 
 	/**
-	 * @return users
+	 * @return users ordered by id
 	 */
 	List<User> findAllUsers();
 
+	/**
+	 * @param userName
+	 * @param fields   properties to include, null for the whole user
+	 * @return JSON of the user, null if there is no such user. The whole user is
+	 *         rendered once per version and shared: it must not be modified.
+	 */
+	byte[] findUserJson(String userName, Set<UserField> fields);
+
+	/**
+	 * Same page as findUsersPage, as the JSON of each user.
+	 * 
+	 * @param afterId exclusive cursor
+	 * @param limit maximum page size
+	 * @param fields properties to include, null for the whole user
+	 * @return JSON arrays keyed by user id, shared as in findUserJson
+	 */
+	NavigableMap<Long, byte[]> findUsersPageJson(long afterId, int limit, Set<UserField> fields);
+
+	/**
+	 * findUserJson on the lookup executor, optionally after a delay.
+	 * 
+	 * @param userName
+	 * @param fields properties to include, null for the whole user
+	 * @param delayInMillis 0 for none
+	 * @return JSON of the user, or null if there is no such user; cancelling it drops the pending delay.
+	 *         A delayed lookup fails with RejectedExecutionException if too many are pending once it is due
+	 * @throws java.util.concurrent.RejectedExecutionException when too many lookups are pending
+	 */
+	CompletableFuture<byte[]> findUserJsonAsync(String userName, Set<UserField> fields, long delayInMillis);
+
+	/**
+	 * @param userName
+	 * @return version of the stored user, 0 if there is no such user
+	 */
+	long findUserVersion(String userName);
+
+	/**
+	 * Cheap fingerprint of a findUsersPage result: it changes whenever any user
+	 * of that page is created, updated or deleted.
+	 * 
+	 * @param afterId exclusive cursor
+	 * @param limit maximum page size
+	 * @return version of the page
+	 */
+	long findUsersPageVersion(long afterId, int limit);
+
+	/**
+	 * Version of the whole store: it changes whenever any user is created,
+	 * updated or deleted, and costs the same however many users there are.
+	 * 
+	 * @return version of findAllUsers
+	 */
+	long findStoreVersion();
+
+	/**
+	 * Keyset pagination over users ordered by id.
+	 * 
+	 * @param afterId exclusive cursor, the id of the last user of the previous page (0 for the first page)
+	 * @param limit maximum page size
+	 * @return users with id greater than afterId, ordered by id
+	 */
+	List<User> findUsersPage(long afterId, int limit);
+
 	void deleteAllUsers();
 
 	/**
@@ -1,158 +1,434 @@
 package com.identityservice.service;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.access.annotation.Secured;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.identityservice.controller.UserController;
 import com.identityservice.dto.User;
+import com.identityservice.dto.UserField;
+import com.identityservice.exception.UserVersionConflictException;
+import com.identityservice.metrics.MetricsRegistry;
+import com.identityservice.persistence.EncodedRecords;
+import com.identityservice.persistence.InMemoryIdLeaseStore;
+import com.identityservice.persistence.JournalRecord;
+import com.identityservice.persistence.NoOpUserJournal;
+import com.identityservice.persistence.UserJournal;
+import com.identityservice.persistence.UserSnapshotSource;
+import com.identityservice.security.PasswordUpgradeService;
 
 /*
  * User Identity Service Implementation
  * 
  * Methods are secured by Roles.
  * 
+ * Users are stored as compact UserRecords and turned into User DTOs on the way out.
+ * 
+ * Locking is delegated to a StoreLock chosen by identityservice.store.concurrency,
+ * which records its wait and hold times.
+ * Every mutation is appended to the UserJournal while its lock is held, and
+ * acknowledged once the journal has committed it. Its journal records are
+ * encoded before the maps change, so one the journal cannot take fails the
+ * mutation without a trace in the store.
+ * 
+ * Asynchronous lookups run on the LookupExecutor.
+ * 
+ * The store is also the credential store: authentication reads it through
+ * loadUserByUsername, so there is no second copy of each account to keep in sync.
+ * Passwords arrive already hashed; outdated hashes are replaced through upgradePassword.
+ * 
+ * Every write installs a new immutable record with a new version, so readers
+ * can tell whether a user or a page of users changed without materializing any
+ * DTO, and versioned updates are a compare-and-set under the key's write lock.
+ * Single-user writes encode their record before taking the lock and only
+ * version and install it under the lock.
+ * Each record also keeps its rendered JSON, so repeated reads skip serialization.
+ * 
+ * Ids are assigned by the IdAllocator when a user without one is stored.
+ * 
  */
 @Service("userService")
-public class UserServiceImpl implements UserService {
+public class UserServiceImpl implements UserService, UserDetailsService, PasswordUpgradeService, UserSnapshotSource {
 
 	public static final Logger logger = LoggerFactory.getLogger(UserController.class);
-	private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
-	private static Map<String, User> usersCache;
+	private final StoreLock storeLock;
+	private final UserJournal journal;
+	private final LookupExecutor lookupExecutor;
+	private final ObjectMapper objectMapper;
+	private final IdAllocator idAllocator;
+	private final JsonCache jsonCache;
+	/** Record versions; starts at a random point so versions from a previous run are never reused. */
+	private static final AtomicLong versions = new AtomicLong(ThreadLocalRandom.current().nextLong(1L << 62));
+	/**
+	 * Bumped, under the write lock, after every mutation is applied, so a reader that
+	 * sees a store version also sees every change it covers. Random start like versions.
+	 */
+	private static final AtomicLong storeVersion = new AtomicLong(ThreadLocalRandom.current().nextLong(1L << 62));
+	private static Map<String, UserRecord> usersCache;
+	/** Primary key index ordered by id, kept consistent with usersCache by every mutation. */
+	private static ConcurrentNavigableMap<Long, UserRecord> usersById;
 
 	static {
 		usersCache = populateDemoDatabase();
+		usersById = new ConcurrentSkipListMap<>();
+		usersCache.values().forEach(r -> usersById.put(r.id, r));
+	}
+
+	public UserServiceImpl() {
+		this("global", new NoOpUserJournal(), new LookupExecutor(8, 1000), new ObjectMapper(),
+				new IdAllocator(new InMemoryIdLeaseStore(), 1000), new MetricsRegistry(), 100_000);
+	}
+
+	/**
+	 * @param concurrencyMode global (one read/write lock) or striped (per-key
+	 *                        write stripes, lock-free and optimistic reads)
+	 * @param journal         write-ahead log every mutation is appended to
+	 * @param lookupExecutor  pool the asynchronous lookups run on
+	 * @param objectMapper    renders the JSON of users
+	 * @param idAllocator     assigns the ids of new users
+	 * @param metricsRegistry receives the lock wait and hold times
+	 * @param jsonCacheSize   how many users keep their rendered JSON, 0 for none
+	 */
+	@Autowired
+	public UserServiceImpl(@Value("${identityservice.store.concurrency:global}") String concurrencyMode,
+			UserJournal journal, LookupExecutor lookupExecutor, ObjectMapper objectMapper, IdAllocator idAllocator,
+			MetricsRegistry metricsRegistry,
+			@Value("${identityservice.store.json-cache.max-entries:100000}") int jsonCacheSize) {
+		this.storeLock = new InstrumentedStoreLock(StoreLock.forMode(concurrencyMode), metricsRegistry);
+		this.journal = journal;
+		this.lookupExecutor = lookupExecutor;
+		this.objectMapper = objectMapper;
+		this.idAllocator = idAllocator;
+		this.jsonCache = new JsonCache(objectMapper, jsonCacheSize);
+		logger.info("User store concurrency mode: {}", concurrencyMode);
+	}
+
+	/**
+	 * Rebuilds the users cache from the journal. A fresh journal is seeded with
+	 * the demo database so that it is the only source of truth from then on.
+	 */
+	@PostConstruct
+	public void recover() throws IOException {
+		long start = System.nanoTime();
+		if (journal.isEmpty()) {
+			awaitDurable(journal.append(usersById.values().stream().map(r -> JournalRecord.save(r.toUser()))
+					.collect(Collectors.toList())));
+			if (!usersById.isEmpty())
+				idAllocator.advancePast(usersById.lastKey());
+			return;
+		}
+		storeLock.writeAll(() -> {
+			usersCache.clear();
+			usersById.clear();
+			jsonCache.clear();
+			storeVersion.incrementAndGet();
+			return null;
+		});
+		journal.replay(this::applyRecord);
+		if (!usersById.isEmpty())
+			idAllocator.advancePast(usersById.lastKey());
+		logger.info("Recovered {} users from the journal in {} ms", usersById.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	@Override
+	public Iterable<User> snapshotUsers() {
+		return () -> usersById.values().stream().map(UserRecord::toUser).iterator();
+	}
+
+	/**
+	 * Not secured: authentication runs before there is a caller to check.
+	 */
+	@Override
+	public UserDetails loadUserByUsername(String userName) throws UsernameNotFoundException {
+		UserRecord record = storeLock.readKey(userName, () -> usersCache.get(userName));
+		UserDetails details = record == null ? null : record.toUserDetailsOrNull();
+		if (details == null)
+			throw new UsernameNotFoundException(String.format("User %s is not found.", userName));
+		return details;
+	}
+
+	/**
+	 * Not secured: runs after a successful login, on the hashing pool.
+	 */
+	@Override
+	public boolean upgradePassword(String userName, String currentHash, String newHash) {
+		CompletableFuture<Void> commit = storeLock.writeKey(userName, () -> {
+			UserRecord record = usersCache.get(userName);
+			if (record == null || !record.hasPassword(currentHash))
+				return null;
+			User user = record.toUser();
+			user.setPassword(newHash);
+			EncodedRecords saved = journal.encode(JournalRecord.save(user));
+			putRecord(user);
+			return journal.append(saved);
+		});
+		awaitDurable(commit);
+		return commit != null;
 	}
 
 	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
 	@Override
 	public User findById(long id) {
-		this.stateLock.readLock().lock();
-		try {
-			return usersCache.values().stream().filter(u -> u.getId().equals(id)).findFirst().orElse(null);
-		} finally {
-			stateLock.readLock().unlock();
-		}
+		return UserRecord.toUserOrNull(storeLock.readAll(() -> usersById.get(id)));
 	}
 
 	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
 	@Override
 	public User findByUserName(String userName) {
-		this.stateLock.readLock().lock();
-		try {
-			return usersCache.get(userName);
-		} finally {
-			stateLock.readLock().unlock();
-		}
+		return UserRecord.toUserOrNull(storeLock.readKey(userName, () -> usersCache.get(userName)));
+	}
+
+	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
+	@Override
+	public byte[] findUserJson(String userName, Set<UserField> fields) {
+		UserRecord record = storeLock.readKey(userName, () -> usersCache.get(userName));
+		return record == null ? null : toJson(record, fields);
+	}
+
+	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
+	@Override
+	public NavigableMap<Long, byte[]> findUsersPageJson(long afterId, int limit, Set<UserField> fields) {
+		NavigableMap<Long, byte[]> page = new TreeMap<>();
+		storeLock.readAll(() -> pageRecords(afterId, limit))
+				.forEach(r -> page.put(r.id, toJson(r, fields)));
+		return page;
+	}
+
+	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
+	@Override
+	public CompletableFuture<byte[]> findUserJsonAsync(String userName, Set<UserField> fields, long delayInMillis) {
+		return storeLock.readKey(userName, () -> {
+			if (!usersCache.containsKey(userName))
+				return null;
+			Supplier<byte[]> lookup = () -> {
+				UserRecord record = usersCache.get(userName);
+				return record == null ? null : toJson(record, fields);
+			};
+			if (delayInMillis > 0L)
+				return lookupExecutor.supplyDelayed(lookup, delayInMillis);
+			return CompletableFuture.supplyAsync(lookup, lookupExecutor);
+		});
+	}
+
+	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
+	@Override
+	public long findUserVersion(String userName) {
+		UserRecord record = storeLock.readKey(userName, () -> usersCache.get(userName));
+		return record == null ? 0L : record.version;
+	}
+
+	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
+	@Override
+	public long findUsersPageVersion(long afterId, int limit) {
+		return storeLock.readAll(() -> {
+			long hash = 17L;
+			int count = 0;
+			Iterator<UserRecord> it = usersById.tailMap(afterId, false).values().iterator();
+			while (count < limit && it.hasNext()) {
+				hash = (hash ^ it.next().version) * 0x9E3779B97F4A7C15L;
+				count++;
+			}
+			return (hash ^ count) * 0x9E3779B97F4A7C15L;
+		});
+	}
+
+	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
+	@Override
+	public long findStoreVersion() {
+		return storeVersion.get();
+	}
+
+	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
+	@Override
+	public Map<String, User> findByUserNames(Collection<String> names) {
+		List<UserRecord> records = storeLock.readAll(() -> {
+			List<UserRecord> found = new ArrayList<>(names.size());
+			for (String name : names) {
+				UserRecord record = usersCache.get(name);
+				if (record != null)
+					found.add(record);
+			}
+			return found;
+		});
+		Map<String, User> users = new LinkedHashMap<>();
+		records.forEach(r -> users.put(r.userName, r.toUser()));
+		return users;
 	}
 
 	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
-	@Async
 	@Override
 	public CompletableFuture<User> findByUserNameAsync(String userName) {
-		this.stateLock.readLock().lock();
-		try {
+		return storeLock.readKey(userName, () -> {
 			if (usersCache.containsKey(userName))
-				return CompletableFuture.supplyAsync(() -> usersCache.get(userName));
+				return CompletableFuture.supplyAsync(() -> UserRecord.toUserOrNull(usersCache.get(userName)),
+						lookupExecutor);
 			else
 				return null;
-		} finally {
-			stateLock.readLock().unlock();
-		}
+		});
 	}
 	
 	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
-	@Async
 	@Override
 	public CompletableFuture<User> findByUserNameAsyncDelayed(String userName, long delayInMillis) {
-		this.stateLock.readLock().lock();
-		try {
+		return storeLock.readKey(userName, () -> {
 			if (usersCache.containsKey(userName))
-				return CompletableFuture.supplyAsync(() -> getUserFromCacheDelayed(userName, delayInMillis));
+				return lookupExecutor.supplyDelayed(() -> UserRecord.toUserOrNull(usersCache.get(userName)),
+						delayInMillis);
 			else
 				return null;
-		} finally {
-			stateLock.readLock().unlock();
-		}
+		});
 	}
 	
-	private User getUserFromCacheDelayed(String userName, long delayInMillis) {
-		try {
-			Thread.sleep(delayInMillis);
-		} catch (InterruptedException e) {
-			//ignore
-		}
-		return usersCache.get(userName);
-	}
-
 	@Secured("ROLE_ADMIN")
 	@Override
 	public void saveUser(User user) {
 		user.completeDefaultsIfMissing();
-		stateLock.writeLock().lock();
-		try {
-			usersCache.put(user.getUserName(), user);
-		} finally {
-			stateLock.writeLock().unlock();
-		}
+		UserRecord record = prepareRecord(user);
+		EncodedRecords saved = journal.encode(JournalRecord.save(user));
+		awaitDurable(storeLock.writeKey(user.getUserName(), () -> {
+			installRecord(user, record);
+			return journal.append(saved);
+		}));
+	}
+
+	@Secured("ROLE_ADMIN")
+	@Override
+	public List<Boolean> saveNewUsers(List<User> users) {
+		users.forEach(User::completeDefaultsIfMissing);
+		List<Boolean> created = new ArrayList<>(users.size());
+		awaitDurable(storeLock.writeAll(() -> {
+			List<User> fresh = new ArrayList<>(users.size());
+			Set<String> claimed = new HashSet<>();
+			for (User user : users) {
+				boolean isNew = !usersCache.containsKey(user.getUserName()) && claimed.add(user.getUserName());
+				if (isNew) {
+					user.setId(idAllocator.next());
+					fresh.add(user);
+				}
+				created.add(isNew);
+			}
+			if (fresh.isEmpty())
+				return null;
+			EncodedRecords saved = journal
+					.encode(fresh.stream().map(JournalRecord::save).collect(Collectors.toList()));
+			fresh.forEach(this::putRecord);
+			return journal.append(saved);
+		}));
+		return created;
 	}
 
 	@Secured("ROLE_ADMIN")
 	@Override
 	public void updateUser(User user) {
 		user.setUpdateDate(Calendar.getInstance());
-		stateLock.writeLock().lock();
-		try {
-			usersCache.put(user.getUserName(), user);
-		} finally {
-			stateLock.writeLock().unlock();
-		}
+		UserRecord record = prepareRecord(user);
+		EncodedRecords saved = journal.encode(JournalRecord.save(user));
+		awaitDurable(storeLock.writeKey(user.getUserName(), () -> {
+			installRecord(user, record);
+			return journal.append(saved);
+		}));
 	}
 
 	@Secured("ROLE_ADMIN")
 	@Override
-	public void deleteUserById(long id) {
-		User user = findById(id);
-		stateLock.writeLock().lock();
-		try {
-			usersCache.remove(user.getUserName());
-		} finally {
-			stateLock.writeLock().unlock();
+	public void updateUser(User user, long expectedVersion) {
+		user.setUpdateDate(Calendar.getInstance());
+		UserRecord record = prepareRecord(user);
+		EncodedRecords saved = journal.encode(JournalRecord.save(user));
+		awaitDurable(storeLock.writeKey(user.getUserName(), () -> {
+			UserRecord current = usersCache.get(user.getUserName());
+			if (current == null || current.version != expectedVersion)
+				throw new UserVersionConflictException(user.getUserName(), current == null ? 0L : current.version);
+			installRecord(user, record);
+			return journal.append(saved);
+		}));
+	}
+
+	@Secured("ROLE_ADMIN")
+	@Override
+	public boolean deleteUserById(long id) {
+		while (true) {
+			UserRecord seen = usersById.get(id);
+			if (seen == null)
+				return false;
+			// The lock is chosen by userName, so the record is read again under it; if the id
+			// has moved to another userName meanwhile, start over with that one.
+			CompletableFuture<Void> commit = storeLock.writeKey(seen.userName, () -> {
+				UserRecord record = usersById.get(id);
+				if (record == null || !record.userName.equals(seen.userName))
+					return null;
+				EncodedRecords deleted = journal.encode(JournalRecord.delete(id, record.userName));
+				usersById.remove(id, record);
+				usersCache.remove(record.userName, record);
+				jsonCache.remove(id);
+				storeVersion.incrementAndGet();
+				return journal.append(deleted);
+			});
+			if (commit != null) {
+				awaitDurable(commit);
+				return true;
+			}
 		}
 	}
 
 	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
 	@Override
 	public List<User> findAllUsers() {
-		this.stateLock.readLock().lock();
-		try {
-			return usersCache.entrySet().stream().sorted((e1, e2) -> e1.getValue().getId().compareTo(e2.getValue().getId()))
-					.map(Map.Entry::getValue).collect(Collectors.toList());
-		} finally {
-			stateLock.readLock().unlock();
-		}
+		List<UserRecord> records = storeLock.readAll(() -> new ArrayList<>(usersById.values()));
+		return records.stream().map(UserRecord::toUser).collect(Collectors.toList());
+	}
+
+	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
+	@Override
+	public List<User> findUsersPage(long afterId, int limit) {
+		List<UserRecord> records = storeLock.readAll(() -> pageRecords(afterId, limit));
+		return records.stream().map(UserRecord::toUser).collect(Collectors.toList());
 	}
 
 	@Secured("ROLE_ADMIN")
 	@Override
 	public void deleteAllUsers() {
-		stateLock.writeLock().lock();
-		try {
+		awaitDurable(storeLock.writeAll(() -> {
+			EncodedRecords cleared = journal.encode(JournalRecord.clear());
 			usersCache.clear();
-		} finally {
-			stateLock.writeLock().unlock();
-		}
+			usersById.clear();
+			jsonCache.clear();
+			storeVersion.incrementAndGet();
+			return journal.append(cleared);
+		}));
 	}
 
 	@Secured({ "ROLE_USER", "ROLE_ADMIN" })
@@ -161,15 +437,110 @@ public class UserServiceImpl implements UserService {
 		return findByUserName(user.getUserName()) != null;
 	}
 
+	/*
+	 * The full JSON comes from the JsonCache, a projection is rendered on every call.
+	 */
+	private byte[] toJson(UserRecord record, Set<UserField> fields) {
+		return fields == null ? jsonCache.render(record) : record.toJson(objectMapper, fields);
+	}
+
+	/*
+	 * Must be called through storeLock.readAll.
+	 */
+	private static List<UserRecord> pageRecords(long afterId, int limit) {
+		List<UserRecord> page = new ArrayList<>(Math.min(limit, usersById.size()));
+		Iterator<UserRecord> it = usersById.tailMap(afterId, false).values().iterator();
+		while (page.size() < limit && it.hasNext())
+			page.add(it.next());
+		return page;
+	}
+
+	/*
+	 * Must be called holding the write lock for the user's key.
+	 */
+	private UserRecord putRecord(User user) {
+		return installRecord(user, prepareRecord(user));
+	}
+
+	/*
+	 * Encodes a user outside of any lock, first giving it a new id if it has none.
+	 * The record only gets its version from installRecord.
+	 */
+	private UserRecord prepareRecord(User user) {
+		if (user.getId() == null)
+			user.setId(idAllocator.next());
+		return UserRecord.from(user, 0L);
+	}
+
+	/*
+	 * Must be called holding the write lock for the user's key. Installs the
+	 * prepared record under a new version and stamps that version on the user;
+	 * replacing a user under the same userName with a different id drops the
+	 * stale id entry.
+	 */
+	private UserRecord installRecord(User user, UserRecord prepared) {
+		UserRecord record = prepared.withVersion(versions.incrementAndGet());
+		user.setVersion(record.version);
+		UserRecord previous = usersCache.put(record.userName, record);
+		if (previous != null) {
+			jsonCache.remove(previous.id);
+			if (previous.id != record.id)
+				usersById.remove(previous.id, previous);
+		}
+		usersById.put(record.id, record);
+		storeVersion.incrementAndGet();
+		return previous;
+	}
+
+	private void applyRecord(JournalRecord record) {
+		switch (record.getType()) {
+		case SAVE:
+			putRecord(record.getUser());
+			break;
+		case DELETE:
+			UserRecord removed = usersById.remove(record.getId());
+			if (removed != null)
+				usersCache.remove(removed.userName, removed);
+			jsonCache.remove(record.getId());
+			storeVersion.incrementAndGet();
+			break;
+		case CLEAR:
+			usersCache.clear();
+			usersById.clear();
+			jsonCache.clear();
+			storeVersion.incrementAndGet();
+			break;
+		}
+	}
+
+	/*
+	 * Waits, outside of any store lock, until the journal has committed the
+	 * mutation. A null commit means nothing was changed.
+	 */
+	private static void awaitDurable(CompletableFuture<Void> commit) {
+		if (commit == null)
+			return;
+		try {
+			commit.join();
+		} catch (CompletionException e) {
+			throw new IllegalStateException("User store change could not be written to the journal.", e.getCause());
+		}
+	}
+
 	/*
 	 * New users are added to this demo database, in other words users cache.
+	 * The demo users take the first ids; recover() moves the IdAllocator past them.
 	 */
-	private static Map<String, User> populateDemoDatabase() {
-		Map<String, User> users = new ConcurrentHashMap<>();
-		User u1 = new User("admin", "admin", "admin", "admin");
-		users.put(u1.getUserName(), u1);
-		User u2 = new User("guest", "guest", "guest", "guest");
-		users.put(u2.getUserName(), u2);
+	private static Map<String, UserRecord> populateDemoDatabase() {
+		Map<String, UserRecord> users = new ConcurrentHashMap<>();
+		User admin = new User("admin", "admin", "admin", "admin");
+		admin.setId(1L);
+		UserRecord u1 = UserRecord.from(admin, versions.incrementAndGet());
+		users.put(u1.userName, u1);
+		User guest = new User("guest", "guest", "guest", "guest");
+		guest.setId(2L);
+		UserRecord u2 = UserRecord.from(guest, versions.incrementAndGet());
+		users.put(u2.userName, u2);
 		return users;
 	}
 
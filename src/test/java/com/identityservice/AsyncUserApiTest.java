@@ -0,0 +1,86 @@
+package com.identityservice;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.identityservice.dto.User;
+
+/*
+ * Checks that the async endpoints release the container thread: on a container
+ * with only MAX_THREADS request threads, more slow lookups than that are kept
+ * in flight, and a plain request is still served while all of them are pending.
+ * 
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+		"server.tomcat.max-threads=" + AsyncUserApiTest.MAX_THREADS,
+		"server.tomcat.min-spare-threads=" + AsyncUserApiTest.MAX_THREADS,
+		"identityservice.persistence.enabled=false" })
+public class AsyncUserApiTest {
+
+	static final int MAX_THREADS = 2;
+	private static final int SLOW_REQUESTS = 3 * MAX_THREADS;
+	private static final long DELAY_MILLIS = 500L;
+
+	@Autowired
+	private TestRestTemplate restTemplate;
+
+	private HttpHeaders getHeaders() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.add("Authorization", "Basic " + new String(Base64.encodeBase64("admin:admin".getBytes())));
+		headers.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
+		return headers;
+	}
+
+	@Test
+	public void slowRequestsDoNotHoldContainerThreads() throws Exception {
+		restTemplate.exchange("/api/admin/user", HttpMethod.POST,
+				new HttpEntity<Object>(new User("Load", "Tester", "loadtester", "password"), getHeaders()), String.class);
+
+		ExecutorService clients = Executors.newFixedThreadPool(SLOW_REQUESTS);
+		AtomicInteger completed = new AtomicInteger();
+		List<Future<HttpStatus>> slow = new ArrayList<>();
+		try {
+			for (int i = 0; i < SLOW_REQUESTS; i++) {
+				slow.add(clients.submit(() -> {
+					HttpStatus status = restTemplate.exchange("/api/async/user/loadtester/" + DELAY_MILLIS,
+							HttpMethod.GET, new HttpEntity<String>(getHeaders()), User.class).getStatusCode();
+					completed.incrementAndGet();
+					return status;
+				}));
+			}
+			Thread.sleep(DELAY_MILLIS / 4);
+
+			HttpStatus fast = restTemplate.exchange("/api/user/loadtester", HttpMethod.GET,
+					new HttpEntity<String>(getHeaders()), User.class).getStatusCode();
+			int completedBeforeFast = completed.get();
+
+			for (Future<HttpStatus> response : slow)
+				assertEquals(HttpStatus.OK, response.get());
+			assertEquals(HttpStatus.OK, fast);
+			assertEquals("plain request waited for a slow one to free a thread", 0, completedBeforeFast);
+		} finally {
+			clients.shutdownNow();
+		}
+	}
+}
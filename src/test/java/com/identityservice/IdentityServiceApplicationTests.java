@@ -1,10 +1,16 @@
 package com.identityservice;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
@@ -23,15 +29,19 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import com.identityservice.controller.UserController;
+import com.identityservice.dto.AccessToken;
+import com.identityservice.dto.BulkImportRecordResult.Outcome;
+import com.identityservice.dto.BulkImportResult;
 import com.identityservice.dto.Status;
 import com.identityservice.dto.User;
+import com.identityservice.dto.UserLookupResult;
 
 /*
  * Integration tests that test each REST API call.
  * 
  */
 @RunWith(SpringRunner.class)
-@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "identityservice.persistence.data-dir=target/test-data")
 public class IdentityServiceApplicationTests {
 
 	public static final Logger logger = LoggerFactory.getLogger(UserController.class);
@@ -44,7 +54,11 @@ public class IdentityServiceApplicationTests {
 	 * Headers needed for Basic Authentication
 	 */
 	private HttpHeaders getHeaders() {
-		String plainCredentials = "admin:admin";
+		return getHeaders("admin", "admin");
+	}
+
+	private HttpHeaders getHeaders(String userName, String password) {
+		String plainCredentials = userName + ":" + password;
 		String base64Credentials = new String(Base64.encodeBase64(plainCredentials.getBytes()));
 
 		HttpHeaders headers = new HttpHeaders();
@@ -68,6 +82,32 @@ public class IdentityServiceApplicationTests {
 		}
 	}
 
+	@SuppressWarnings("rawtypes")
+	private void getUsersPage() {
+		HttpEntity<String> request = new HttpEntity<String>(getHeaders());
+		ResponseEntity<List> response = restTemplate.exchange(TEST_URI + "/user?limit=1", HttpMethod.GET, request,
+				List.class);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertEquals(1, response.getBody().size());
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void streamUsers() {
+		HttpEntity<String> request = new HttpEntity<String>(getHeaders());
+		int total = restTemplate.exchange(TEST_URI + "/user", HttpMethod.GET, request, List.class).getBody().size();
+
+		HttpHeaders ndjsonHeaders = getHeaders();
+		ndjsonHeaders.setAccept(Arrays.asList(MediaType.valueOf("application/x-ndjson")));
+		ResponseEntity<String> ndjson = restTemplate.exchange(TEST_URI + "/user?stream=ndjson", HttpMethod.GET,
+				new HttpEntity<String>(ndjsonHeaders), String.class);
+		assertEquals(HttpStatus.OK, ndjson.getStatusCode());
+		assertEquals(total, ndjson.getBody().split("\n").length);
+
+		ResponseEntity<List> array = restTemplate.exchange(TEST_URI + "/user?stream=array", HttpMethod.GET, request,
+				List.class);
+		assertEquals(total, array.getBody().size());
+	}
+
 	private void createUser() {
 		User user = new User("John", "Tester", "jtester", "password");
 		HttpEntity<Object> request = new HttpEntity<Object>(user, getHeaders());
@@ -76,6 +116,47 @@ public class IdentityServiceApplicationTests {
 		assertEquals(HttpStatus.CREATED, response.getStatusCode());
 	}
 
+	private void rejectOversizedFields() {
+		String tooLong = String.join("", Collections.nCopies(101, "x"));
+		User user = new User(tooLong, "Tester", "otester", "password");
+		ResponseEntity<String> created = restTemplate.exchange(TEST_URI + "/admin/user/", HttpMethod.POST,
+				new HttpEntity<Object>(user, getHeaders()), String.class);
+		assertEquals(HttpStatus.BAD_REQUEST, created.getStatusCode());
+
+		User update = new User();
+		update.setLastName(tooLong);
+		ResponseEntity<String> updated = restTemplate.exchange(TEST_URI + "/admin/user/jtester", HttpMethod.PUT,
+				new HttpEntity<Object>(update, getHeaders()), String.class);
+		assertEquals(HttpStatus.BAD_REQUEST, updated.getStatusCode());
+	}
+
+	private void importUsers() {
+		HttpHeaders headers = getHeaders();
+		headers.setContentType(MediaType.valueOf("application/x-ndjson"));
+		String body = "{\"firstName\":\"Bulk\",\"lastName\":\"One\",\"userName\":\"bulk1\",\"password\":\"pw\"}\n"
+				+ "\n"
+				+ "{\"firstName\":\"Bulk\",\"lastName\":\"Two\",\"userName\":\"bulk2\"}\n"
+				+ "not json\n"
+				+ "{\"firstName\":\"John\",\"lastName\":\"Tester\",\"userName\":\"jtester\",\"password\":\"pw\"}\n";
+		ResponseEntity<BulkImportResult> response = restTemplate.exchange(TEST_URI + "/admin/user/_bulk",
+				HttpMethod.POST, new HttpEntity<String>(body, headers), BulkImportResult.class);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+
+		BulkImportResult result = response.getBody();
+		assertEquals(4, result.getTotal());
+		assertEquals(1, result.getCreated());
+		assertEquals(1, result.getConflicts());
+		assertEquals(2, result.getInvalid());
+		assertEquals(Outcome.CREATED, result.getResults().get(0).getOutcome());
+		assertEquals(3, result.getResults().get(1).getLine());
+		assertEquals(Outcome.INVALID, result.getResults().get(1).getOutcome());
+		assertEquals(Outcome.CONFLICT, result.getResults().get(3).getOutcome());
+
+		ResponseEntity<User> imported = restTemplate.exchange(TEST_URI + "/user/bulk1", HttpMethod.GET,
+				new HttpEntity<String>(getHeaders()), User.class);
+		assertEquals("One", imported.getBody().getLastName());
+	}
+
 	private void getUser() {
 		HttpEntity<String> request = new HttpEntity<String>(getHeaders());
 		ResponseEntity<User> response = restTemplate.exchange(TEST_URI + "/user/jtester", HttpMethod.GET, request,
@@ -84,6 +165,76 @@ public class IdentityServiceApplicationTests {
 		assertEquals("jtester", user.getUserName());
 	}
 
+	private void getUserById() {
+		HttpEntity<String> request = new HttpEntity<String>(getHeaders());
+		User user = restTemplate.exchange(TEST_URI + "/user/jtester", HttpMethod.GET, request, User.class).getBody();
+		ResponseEntity<User> response = restTemplate.exchange(TEST_URI + "/user/id/" + user.getId(), HttpMethod.GET,
+				request, User.class);
+		assertEquals("jtester", response.getBody().getUserName());
+	}
+
+	private void getUsers() {
+		HttpEntity<Object> request = new HttpEntity<Object>(Arrays.asList("jtester", "nobody", "jtester"),
+				getHeaders());
+		ResponseEntity<UserLookupResult> response = restTemplate.exchange(TEST_URI + "/user/_mget", HttpMethod.POST,
+				request, UserLookupResult.class);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertEquals(1, response.getBody().getUsers().size());
+		assertEquals("jtester", response.getBody().getUsers().get(0).getUserName());
+		assertEquals(Arrays.asList("nobody"), response.getBody().getMissing());
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void getUserFields() {
+		HttpEntity<String> request = new HttpEntity<String>(getHeaders());
+		ResponseEntity<Map> response = restTemplate.exchange(TEST_URI + "/user/jtester?fields=userName,status",
+				HttpMethod.GET, request, Map.class);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertEquals(2, response.getBody().size());
+		assertEquals("ACTIVE", response.getBody().get("status"));
+
+		assertEquals(HttpStatus.BAD_REQUEST, restTemplate.exchange(TEST_URI + "/user?fields=userName,secret",
+				HttpMethod.GET, request, String.class).getStatusCode());
+	}
+
+	private String getUserNotModified() {
+		HttpHeaders headers = getHeaders();
+		ResponseEntity<User> response = restTemplate.exchange(TEST_URI + "/user/jtester", HttpMethod.GET,
+				new HttpEntity<String>(headers), User.class);
+		String etag = response.getHeaders().getETag();
+		assertNotNull(etag);
+
+		headers.setIfNoneMatch(etag);
+		ResponseEntity<String> notModified = restTemplate.exchange(TEST_URI + "/user/jtester", HttpMethod.GET,
+				new HttpEntity<String>(headers), String.class);
+		assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode());
+		assertNull(notModified.getBody());
+
+		ResponseEntity<String> list = restTemplate.exchange(TEST_URI + "/user?limit=10", HttpMethod.GET,
+				new HttpEntity<String>(getHeaders()), String.class);
+		HttpHeaders listHeaders = getHeaders();
+		listHeaders.setIfNoneMatch(list.getHeaders().getETag());
+		assertEquals(HttpStatus.NOT_MODIFIED, restTemplate.exchange(TEST_URI + "/user?limit=10", HttpMethod.GET,
+				new HttpEntity<String>(listHeaders), String.class).getStatusCode());
+
+		ResponseEntity<String> all = restTemplate.exchange(TEST_URI + "/user", HttpMethod.GET,
+				new HttpEntity<String>(getHeaders()), String.class);
+		HttpHeaders allHeaders = getHeaders();
+		allHeaders.setIfNoneMatch(all.getHeaders().getETag());
+		assertEquals(HttpStatus.NOT_MODIFIED, restTemplate.exchange(TEST_URI + "/user", HttpMethod.GET,
+				new HttpEntity<String>(allHeaders), String.class).getStatusCode());
+		return etag;
+	}
+
+	private void getUserModifiedSince(String etag) {
+		HttpHeaders headers = getHeaders();
+		headers.setIfNoneMatch(etag);
+		ResponseEntity<User> response = restTemplate.exchange(TEST_URI + "/user/jtester", HttpMethod.GET,
+				new HttpEntity<String>(headers), User.class);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertNotEquals(etag, response.getHeaders().getETag());
+	}
+
 	private void updateUser() {
 		User user = new User("John", "TesterChanged", "jtester");
 		HttpEntity<Object> request = new HttpEntity<Object>(user, getHeaders());
@@ -93,6 +244,22 @@ public class IdentityServiceApplicationTests {
 		assertEquals("TesterChanged", updatedUser.getLastName());
 	}
 	
+	private void updateUserIfMatch(String staleEtag) {
+		HttpHeaders headers = getHeaders();
+		headers.setIfMatch(staleEtag);
+		ResponseEntity<String> stale = restTemplate.exchange(TEST_URI + "/admin/user/jtester", HttpMethod.PUT,
+				new HttpEntity<Object>(new User("John", "Stale", "jtester"), headers), String.class);
+		assertEquals(HttpStatus.PRECONDITION_FAILED, stale.getStatusCode());
+
+		String current = restTemplate.exchange(TEST_URI + "/user/jtester", HttpMethod.GET,
+				new HttpEntity<String>(getHeaders()), User.class).getHeaders().getETag();
+		headers.setIfMatch(current);
+		ResponseEntity<User> updated = restTemplate.exchange(TEST_URI + "/admin/user/jtester", HttpMethod.PUT,
+				new HttpEntity<Object>(new User("John", "TesterChanged", "jtester"), headers), User.class);
+		assertEquals(HttpStatus.OK, updated.getStatusCode());
+		assertNotEquals(current, updated.getHeaders().getETag());
+	}
+
 	private void deactivateUser() {
 		User user = new User("John", "jtester", "jtester", Status.INACTIVE);
 		HttpEntity<Object> request = new HttpEntity<Object>(user, getHeaders());
@@ -102,6 +269,35 @@ public class IdentityServiceApplicationTests {
 		assertEquals(Status.INACTIVE, updatedUser.getStatus());
 	}
 
+	private void authenticateAs(String userName, String password, HttpStatus expected) {
+		HttpEntity<String> request = new HttpEntity<String>(getHeaders(userName, password));
+		ResponseEntity<String> response = restTemplate.exchange(TEST_URI + "/user/" + userName, HttpMethod.GET, request,
+				String.class);
+		assertEquals(expected, response.getStatusCode());
+	}
+
+	private String issueToken(String userName, String password) {
+		ResponseEntity<AccessToken> response = restTemplate.exchange(TEST_URI + "/token", HttpMethod.POST,
+				new HttpEntity<String>(getHeaders(userName, password)), AccessToken.class);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertEquals("Bearer", response.getBody().getTokenType());
+		return response.getBody().getAccessToken();
+	}
+
+	private void authenticateWithToken(String token, HttpStatus expected) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.add("Authorization", "Bearer " + token);
+		headers.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
+		ResponseEntity<String> response = restTemplate.exchange(TEST_URI + "/user/jtester", HttpMethod.GET,
+				new HttpEntity<String>(headers), String.class);
+		assertEquals(expected, response.getStatusCode());
+		if (expected == HttpStatus.OK) {
+			ResponseEntity<String> renewal = restTemplate.exchange(TEST_URI + "/token", HttpMethod.POST,
+					new HttpEntity<String>(headers), String.class);
+			assertEquals(HttpStatus.FORBIDDEN, renewal.getStatusCode());
+		}
+	}
+
 	private void deleteUser() {
 		HttpEntity<String> request = new HttpEntity<String>(getHeaders());
 		ResponseEntity<User> response = restTemplate.exchange(TEST_URI + "/admin/user/jtester", HttpMethod.DELETE,
@@ -116,16 +312,50 @@ public class IdentityServiceApplicationTests {
 		assertEquals(HttpStatus.NO_CONTENT, response.getStatusCode());
 	}
 
+	private void getMetrics() {
+		ResponseEntity<String> forbidden = restTemplate.exchange(TEST_URI + "/admin/metrics", HttpMethod.GET,
+				new HttpEntity<String>(getHeaders("john", "doe")), String.class);
+		assertEquals(HttpStatus.FORBIDDEN, forbidden.getStatusCode());
+
+		ResponseEntity<String> response = restTemplate.exchange(TEST_URI + "/admin/metrics", HttpMethod.GET,
+				new HttpEntity<String>(getHeaders()), String.class);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertTrue(response.getHeaders().getContentType().toString().startsWith("text/plain"));
+		String metrics = response.getBody();
+		assertTrue(metrics.contains("# TYPE identity_http_request_seconds summary"));
+		assertTrue(metrics.contains("identity_http_request_seconds{endpoint=\"UserController.getUser\",quantile=\"0.99\"}"));
+		assertTrue(metrics.contains("identity_store_lock_wait_seconds_count{operation=\"write_key\"}"));
+		assertTrue(metrics.contains("identity_store_lock_hold_seconds_count{operation=\"write_all\"}"));
+		assertTrue(metrics.contains("identity_lookup_queue_depth 0"));
+	}
+
 	@Test
 	public void testInOrder() {
 		deleteAllUsers();
 		getAllUsers();
 		createUser();
+		rejectOversizedFields();
+		importUsers();
 		getUser();
+		getUserById();
+		getUsers();
+		getUserFields();
+		String etag = getUserNotModified();
 		updateUser();
+		getUserModifiedSince(etag);
+		updateUserIfMatch(etag);
+		authenticateAs("jtester", "password", HttpStatus.OK);
+		authenticateAs("jtester", "password", HttpStatus.OK);
+		String token = issueToken("jtester", "password");
+		authenticateWithToken(token, HttpStatus.OK);
 		deactivateUser();
+		authenticateAs("jtester", "password", HttpStatus.UNAUTHORIZED);
+		authenticateWithToken(token, HttpStatus.UNAUTHORIZED);
 		getAllUsers();
+		getUsersPage();
+		streamUsers();
 		deleteUser();
 		deleteAllUsers();
+		getMetrics();
 	}
 }
@@ -0,0 +1,88 @@
+package com.identityservice.audit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingBufferAuditLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesEveryPublishedEventAsOneLine() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("audit.log");
+        RingBufferAuditLog log = RingBufferAuditLog.open(file, 1 << 16);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            pool.execute(() -> {
+                for (int i = 0; i < 1000; i++)
+                    assertTrue(log.audit(AuditAction.USER_CREATED, "admin", "user" + thread, i));
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        log.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(4000, lines.size());
+        Set<String> distinct = new HashSet<>();
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            assertEquals(7, fields.length);
+            assertEquals("USER_CREATED", fields[1]);
+            distinct.add(fields[4] + "/" + fields[6]);
+        }
+        assertEquals(4000, distinct.size());
+        assertEquals(4000L, log.getWritten());
+        assertEquals(0L, log.getDropped());
+    }
+
+    @Test
+    public void dropsAndCountsEventsWhenFull() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("audit.log");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        RingBufferAuditLog log = new RingBufferAuditLog(channel, 8);
+
+        // Consumer not started yet, so nothing frees a slot.
+        for (int i = 0; i < 8; i++)
+            assertTrue(log.access("john", "GET", "/api/user/" + i, 200, i));
+        assertFalse(log.access("john", "GET", "/api/user/8", 200, 8L));
+        assertFalse(log.access("john", "GET", "/api/user/9", 200, 9L));
+        assertEquals(2L, log.getDropped());
+
+        log.start();
+        log.close();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(9, lines.size());
+        assertTrue(lines.get(0).endsWith("\tACCESS\tjohn\tGET\t/api/user/0\t200\t0"));
+        assertTrue(lines.get(8).endsWith("\tEVENTS_DROPPED\t-\t-\t-\t0\t2"));
+    }
+
+    @Test
+    public void escapesSeparatorsInFields() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("audit.log");
+        RingBufferAuditLog log = RingBufferAuditLog.open(file, 8);
+        log.audit(AuditAction.USER_DELETED, "admin", "evil\n2018-01-01T00:00:00Z\tUSER_CREATED", 7L);
+        log.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith("\tUSER_DELETED\tadmin\t-\tevil\\n2018-01-01T00:00:00Z\\tUSER_CREATED\t0\t7"));
+    }
+}
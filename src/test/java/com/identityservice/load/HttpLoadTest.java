@@ -0,0 +1,173 @@
+package com.identityservice.load;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.identityservice.dto.User;
+import com.identityservice.service.UserService;
+
+/*
+ * End-to-end load test: drives an open-loop mix of user, async and admin
+ * requests with Basic auth through Tomcat, the security filter chain and
+ * Jackson, reports throughput and latency percentiles, and fails when they
+ * regress past the stored baseline.
+ * 
+ * Skipped unless loadtest.enabled is set, which the loadtest profile does:
+ * 	mvn -Ploadtest test
+ * 	mvn -Ploadtest test -Dloadtest.rate=500 -Dloadtest.mix=getUser=80,updateUser=20
+ * 	mvn -Ploadtest test -Dloadtest.update-baseline=true
+ * 
+ * The baseline only holds for the machine, rate and mix it was recorded with;
+ * re-record it with loadtest.update-baseline after changing any of them.
+ * createUser is left out of the default mix: it mostly measures password
+ * hashing, which would drown out everything else on a small machine.
+ * 
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+		"identityservice.persistence.data-dir=" + HttpLoadTest.DATA_DIR })
+public class HttpLoadTest {
+
+	public static final Logger logger = LoggerFactory.getLogger(HttpLoadTest.class);
+
+	static final String DATA_DIR = "target/loadtest-data";
+	private static final String DEFAULT_MIX = "getUser=40,getUserById=10,listPage=10,mget=10,getUserAsync=10,updateUser=20";
+	private static final String RESULT_FILE = "target/loadtest-result.properties";
+	private static final int SEED_BATCH = 1000;
+
+	private static final boolean ENABLED = Boolean.getBoolean("loadtest.enabled");
+	private static final int RATE = Integer.getInteger("loadtest.rate", 100);
+	private static final int WARMUP_SECONDS = Integer.getInteger("loadtest.warmup-seconds", 10);
+	private static final int DURATION_SECONDS = Integer.getInteger("loadtest.duration-seconds", 30);
+	private static final int CONNECTIONS = Integer.getInteger("loadtest.connections", 64);
+	private static final int USERS = Integer.getInteger("loadtest.users", 1000);
+	private static final long SEED = Long.getLong("loadtest.seed", 42L);
+	private static final String MIX = System.getProperty("loadtest.mix", DEFAULT_MIX);
+	private static final String BASELINE = System.getProperty("loadtest.baseline",
+			"src/test/resources/loadtest-baseline.properties");
+	private static final double TOLERANCE = Double.parseDouble(System.getProperty("loadtest.tolerance", "0.5"));
+	private static final double SLACK_MILLIS = Double.parseDouble(System.getProperty("loadtest.slack-ms", "5"));
+	private static final boolean UPDATE_BASELINE = Boolean.getBoolean("loadtest.update-baseline");
+
+	static {
+		if (ENABLED) {
+			// Idle connections beyond this are closed instead of kept alive.
+			System.setProperty("http.maxConnections", Integer.toString(CONNECTIONS));
+			deleteRecursively(Paths.get(DATA_DIR));
+		}
+	}
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private UserService userService;
+
+	/** Runs before the application context is loaded, so a skipped load test costs nothing. */
+	@BeforeClass
+	public static void requireEnabled() {
+		assumeTrue("load test disabled, run with -Ploadtest", ENABLED);
+	}
+
+	@Test
+	public void loadStaysWithinBaseline() throws Exception {
+		LoadTarget target = seed();
+		LoadMix mix = LoadMix.parse(MIX);
+		LoadReport report = new LoadGenerator(target, mix, RATE, CONNECTIONS).run(WARMUP_SECONDS, DURATION_SECONDS,
+				SEED);
+		logger.info("Load test results:\n{}", report.format());
+
+		Properties result = report.toBaseline();
+		store(result, Paths.get(RESULT_FILE));
+		if (UPDATE_BASELINE) {
+			store(result, Paths.get(BASELINE));
+			logger.info("Baseline written to {}", BASELINE);
+			return;
+		}
+
+		Path baselineFile = Paths.get(BASELINE);
+		assertTrue(String.format("No baseline at %s, record one with -Dloadtest.update-baseline=true", BASELINE),
+				Files.exists(baselineFile));
+		Properties baseline = new Properties();
+		try (InputStream in = Files.newInputStream(baselineFile)) {
+			baseline.load(in);
+		}
+		List<String> regressions = report.regressionsAgainst(baseline, TOLERANCE, SLACK_MILLIS);
+		assertTrue(String.format("Regressed past %s (tolerance %.0f%%, slack %.1f ms):%n%s", BASELINE,
+				TOLERANCE * 100.0, SLACK_MILLIS, String.join(System.lineSeparator(), regressions)),
+				regressions.isEmpty());
+	}
+
+	/*
+	 * Loads USERS users straight into the store as an admin; their passwords
+	 * are never used, so they are stored without hashing.
+	 */
+	private LoadTarget seed() {
+		String[] userNames = new String[USERS];
+		long[] ids = new long[USERS];
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("admin", null,
+				AuthorityUtils.createAuthorityList("ROLE_ADMIN", "ROLE_USER")));
+		try {
+			List<User> batch = new ArrayList<>(SEED_BATCH);
+			for (int i = 0; i < USERS; i++) {
+				userNames[i] = "seed" + i;
+				User user = new User("Seed", "User" + i, userNames[i], "{noop}password");
+				user.setEmail(userNames[i] + "@example.com");
+				batch.add(user);
+				if (batch.size() == SEED_BATCH || i == USERS - 1) {
+					userService.saveNewUsers(batch);
+					int first = i + 1 - batch.size();
+					for (int j = 0; j < batch.size(); j++)
+						ids[first + j] = batch.get(j).getId();
+					batch.clear();
+				}
+			}
+		} finally {
+			SecurityContextHolder.clearContext();
+		}
+		return new LoadTarget("http://localhost:" + port, "john:doe", "admin:admin", userNames, ids);
+	}
+
+	private static void store(Properties properties, Path file) throws IOException {
+		if (file.getParent() != null)
+			Files.createDirectories(file.getParent());
+		try (OutputStream out = Files.newOutputStream(file)) {
+			properties.store(out, "HttpLoadTest results");
+		}
+	}
+
+	private static void deleteRecursively(Path directory) {
+		if (!Files.exists(directory))
+			return;
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format("Could not clear %s", directory), e);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.identityservice.load;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Open-loop load: requests are scheduled at a fixed rate whether or not
+ * earlier ones have completed, the way independent clients behave. A request
+ * whose connection is still busy waits in the queue, and that wait counts
+ * towards its latency.
+ * 
+ */
+final class LoadGenerator {
+
+	private static final long DRAIN_TIMEOUT_SECONDS = 60L;
+
+	private final LoadTarget target;
+	private final LoadMix mix;
+	private final int rate;
+	private final int connections;
+
+	/**
+	 * @param target
+	 * @param mix
+	 * @param rate        requests per second
+	 * @param connections requests in flight at most
+	 */
+	LoadGenerator(LoadTarget target, LoadMix mix, int rate, int connections) {
+		this.target = target;
+		this.mix = mix;
+		this.rate = rate;
+		this.connections = connections;
+	}
+
+	/**
+	 * Runs warmupSeconds of load that is not recorded, then durationSeconds that is.
+	 * 
+	 * @param warmupSeconds
+	 * @param durationSeconds
+	 * @param seed
+	 * @return report of the measured requests
+	 * @throws InterruptedException
+	 */
+	LoadReport run(int warmupSeconds, int durationSeconds, long seed) throws InterruptedException {
+		LoadReport report = new LoadReport(mix, rate);
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService clients = new ThreadPoolExecutor(connections, connections, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread thread = new Thread(r, "load-client-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		SplittableRandom scheduleRandom = new SplittableRandom(seed);
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1L) / rate;
+		long start = System.nanoTime();
+		long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+		try {
+			for (long i = 0;; i++) {
+				long intended = start + i * intervalNanos;
+				if (intended >= end)
+					break;
+				long wait;
+				while ((wait = intended - System.nanoTime()) > 0L)
+					LockSupport.parkNanos(wait);
+
+				LoadOperation operation = mix.pick(scheduleRandom);
+				SplittableRandom random = scheduleRandom.split();
+				boolean measured = intended >= measureStart;
+				clients.execute(() -> {
+					boolean success;
+					try {
+						success = operation.isSuccess(operation.execute(target, random));
+					} catch (IOException e) {
+						success = false;
+					}
+					if (measured)
+						report.record(operation, success, System.nanoTime() - intended);
+				});
+			}
+		} finally {
+			clients.shutdown();
+		}
+		if (!clients.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+			clients.shutdownNow();
+		report.setMeasuredNanos(Math.max(end, System.nanoTime()) - measureStart);
+		return report;
+	}
+}
@@ -0,0 +1,59 @@
+package com.identityservice.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/*
+ * Weighted choice of LoadOperations, parsed from "getUser=40,updateUser=10,...".
+ * 
+ */
+final class LoadMix {
+
+	private final String spec;
+	private final LoadOperation[] operations;
+	private final int[] cumulativeWeights;
+
+	private LoadMix(String spec, LoadOperation[] operations, int[] cumulativeWeights) {
+		this.spec = spec;
+		this.operations = operations;
+		this.cumulativeWeights = cumulativeWeights;
+	}
+
+	static LoadMix parse(String spec) {
+		List<LoadOperation> operations = new ArrayList<>();
+		List<Integer> weights = new ArrayList<>();
+		int total = 0;
+		for (String entry : spec.split(",")) {
+			String[] parts = entry.trim().split("=");
+			if (parts.length != 2)
+				throw new IllegalArgumentException(String.format("Expected operation=weight, got %s", entry));
+			int weight = Integer.parseInt(parts[1].trim());
+			if (weight <= 0)
+				continue;
+			total += weight;
+			operations.add(LoadOperation.forMixName(parts[0].trim()));
+			weights.add(total);
+		}
+		if (operations.isEmpty())
+			throw new IllegalArgumentException(String.format("Load mix %s has no operation", spec));
+		return new LoadMix(spec.replace(" ", ""), operations.toArray(new LoadOperation[0]),
+				weights.stream().mapToInt(Integer::intValue).toArray());
+	}
+
+	LoadOperation pick(SplittableRandom random) {
+		int point = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0;; i++)
+			if (point < cumulativeWeights[i])
+				return operations[i];
+	}
+
+	LoadOperation[] operations() {
+		return operations.clone();
+	}
+
+	@Override
+	public String toString() {
+		return spec;
+	}
+}
@@ -0,0 +1,99 @@
+package com.identityservice.load;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/*
+ * The requests a load mix is made of, each with the statuses that count as success.
+ * 
+ */
+enum LoadOperation {
+
+	GET_USER("getUser", 200) {
+		@Override
+		int execute(LoadTarget target, SplittableRandom random) throws IOException {
+			return target.get("/api/user/" + target.userName(random), target.userCredentials);
+		}
+	},
+	GET_USER_BY_ID("getUserById", 200) {
+		@Override
+		int execute(LoadTarget target, SplittableRandom random) throws IOException {
+			return target.get("/api/user/id/" + target.id(random), target.userCredentials);
+		}
+	},
+	LIST_PAGE("listPage", 200, 204) {
+		@Override
+		int execute(LoadTarget target, SplittableRandom random) throws IOException {
+			long after = random.nextLong(target.maxId());
+			return target.get("/api/user?limit=100&after=" + after, target.userCredentials);
+		}
+	},
+	MGET("mget", 200) {
+		@Override
+		int execute(LoadTarget target, SplittableRandom random) throws IOException {
+			StringBuilder names = new StringBuilder("[");
+			for (int i = 0; i < 10; i++)
+				names.append(i == 0 ? "\"" : ",\"").append(target.userName(random)).append('"');
+			return target.request("POST", "/api/user/_mget", target.userCredentials, names.append(']').toString());
+		}
+	},
+	GET_USER_ASYNC("getUserAsync", 200) {
+		@Override
+		int execute(LoadTarget target, SplittableRandom random) throws IOException {
+			return target.get("/api/async/user/" + target.userName(random), target.userCredentials);
+		}
+	},
+	UPDATE_USER("updateUser", 200) {
+		@Override
+		int execute(LoadTarget target, SplittableRandom random) throws IOException {
+			String userName = target.userName(random);
+			return target.request("PUT", "/api/admin/user/" + userName, target.adminCredentials,
+					String.format("{\"userName\":\"%s\",\"lastName\":\"Updated%d\"}", userName, random.nextInt(1000)));
+		}
+	},
+	/** Hashes the new user's password, so it is as slow as the configured password hashing. */
+	CREATE_USER("createUser", 201) {
+		@Override
+		int execute(LoadTarget target, SplittableRandom random) throws IOException {
+			String userName = target.newUserName();
+			return target.request("POST", "/api/admin/user", target.adminCredentials, String.format(
+					"{\"firstName\":\"Load\",\"lastName\":\"Tester\",\"userName\":\"%s\",\"password\":\"password\"}",
+					userName));
+		}
+	};
+
+	private final String mixName;
+	private final int[] expectedStatuses;
+
+	LoadOperation(String mixName, int... expectedStatuses) {
+		this.mixName = mixName;
+		this.expectedStatuses = expectedStatuses;
+	}
+
+	/**
+	 * @param target
+	 * @param random
+	 * @return response status
+	 * @throws IOException
+	 */
+	abstract int execute(LoadTarget target, SplittableRandom random) throws IOException;
+
+	boolean isSuccess(int status) {
+		for (int expected : expectedStatuses)
+			if (status == expected)
+				return true;
+		return false;
+	}
+
+	/** Name used in mixes, reports and baselines. */
+	String mixName() {
+		return mixName;
+	}
+
+	static LoadOperation forMixName(String name) {
+		for (LoadOperation operation : values())
+			if (operation.mixName.equals(name))
+				return operation;
+		throw new IllegalArgumentException(String.format("Unknown load operation: %s", name));
+	}
+}
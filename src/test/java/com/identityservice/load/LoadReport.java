@@ -0,0 +1,161 @@
+package com.identityservice.load;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/*
+ * Latencies and error counts of one load run, per operation and in total.
+ * 
+ * Latency is measured from the time a request was scheduled to be sent, not
+ * from when a connection became free, so a backlog shows up in the
+ * percentiles instead of silently lowering the offered rate. Failed requests
+ * are only counted, not timed.
+ * 
+ */
+final class LoadReport {
+
+	private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(5L);
+	private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+	/** Percentiles held against the baseline; p999 of a short run is too noisy to gate on. */
+	private static final String[] GATED_PERCENTILES = { "p50", "p99" };
+	private static final double ERROR_RATIO_SLACK = 0.01;
+
+	private final Map<LoadOperation, Stats> operations = new LinkedHashMap<>();
+	private final Stats total = new Stats();
+	private final String mix;
+	private final int rate;
+	private long measuredNanos;
+
+	LoadReport(LoadMix mix, int rate) {
+		this.mix = mix.toString();
+		this.rate = rate;
+		for (LoadOperation operation : mix.operations())
+			operations.put(operation, new Stats());
+	}
+
+	void record(LoadOperation operation, boolean success, long latencyNanos) {
+		long value = Math.min(Math.max(latencyNanos, 0L), HIGHEST_TRACKABLE_NANOS);
+		for (Stats stats : new Stats[] { operations.get(operation), total }) {
+			if (success)
+				stats.latencies.recordValue(value);
+			else
+				stats.errors.increment();
+		}
+	}
+
+	void setMeasuredNanos(long measuredNanos) {
+		this.measuredNanos = measuredNanos;
+	}
+
+	double throughput() {
+		return total.requests() / (measuredNanos / 1e9);
+	}
+
+	String format() {
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("Offered %d req/s, achieved %.1f req/s; mix %s%n", rate, throughput(), mix));
+		out.append(String.format("%-14s %9s %7s %9s %9s %9s %9s %9s%n", "operation", "requests", "errors", "p50 ms",
+				"p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		for (Map.Entry<LoadOperation, Stats> entry : operations.entrySet())
+			format(out, entry.getKey().mixName(), entry.getValue());
+		format(out, "total", total);
+		return out.toString();
+	}
+
+	private static void format(StringBuilder out, String name, Stats stats) {
+		Histogram latencies = stats.latencies;
+		out.append(String.format("%-14s %9d %7d", name, stats.requests(), stats.errors.sum()));
+		for (double percentile : PERCENTILES)
+			out.append(String.format(" %9.2f", millis(latencies, percentile)));
+		out.append(String.format(" %9.2f%n", latencies.getMaxValue() / 1e6));
+	}
+
+	/**
+	 * @return the figures a later run is compared against
+	 */
+	Properties toBaseline() {
+		Properties baseline = new Properties();
+		baseline.setProperty("rate", Integer.toString(rate));
+		baseline.setProperty("mix", mix);
+		baseline.setProperty("throughput", String.format("%.1f", throughput()));
+		for (Map.Entry<LoadOperation, Stats> entry : operations.entrySet())
+			putStats(baseline, entry.getKey().mixName(), entry.getValue());
+		putStats(baseline, "total", total);
+		return baseline;
+	}
+
+	private static void putStats(Properties baseline, String name, Stats stats) {
+		baseline.setProperty(name + ".p50.ms", String.format("%.2f", millis(stats.latencies, 50.0)));
+		baseline.setProperty(name + ".p99.ms", String.format("%.2f", millis(stats.latencies, 99.0)));
+		baseline.setProperty(name + ".error.ratio", String.format("%.4f", stats.errorRatio()));
+	}
+
+	/**
+	 * @param baseline     figures of a previous run with the same rate and mix
+	 * @param tolerance    allowed relative regression, e.g. 0.3 for 30%
+	 * @param slackMillis  latency increases below this are never regressions
+	 * @return one line per figure that regressed, empty if none did
+	 */
+	List<String> regressionsAgainst(Properties baseline, double tolerance, double slackMillis) {
+		List<String> regressions = new ArrayList<>();
+		if (!Integer.toString(rate).equals(baseline.getProperty("rate")) || !mix.equals(baseline.getProperty("mix"))) {
+			regressions.add(String.format("baseline was recorded at %s req/s with mix %s, not %d req/s with mix %s",
+					baseline.getProperty("rate"), baseline.getProperty("mix"), rate, mix));
+			return regressions;
+		}
+
+		double baseThroughput = Double.parseDouble(baseline.getProperty("throughput"));
+		if (throughput() < baseThroughput * (1.0 - tolerance))
+			regressions.add(String.format("throughput %.1f req/s, baseline %.1f", throughput(), baseThroughput));
+
+		Map<String, Stats> named = new LinkedHashMap<>();
+		operations.forEach((operation, stats) -> named.put(operation.mixName(), stats));
+		named.put("total", total);
+		Properties current = toBaseline();
+		for (String name : named.keySet()) {
+			for (String percentile : GATED_PERCENTILES) {
+				String key = name + "." + percentile + ".ms";
+				if (baseline.getProperty(key) == null)
+					continue;
+				double base = Double.parseDouble(baseline.getProperty(key));
+				double now = Double.parseDouble(current.getProperty(key));
+				if (now > base * (1.0 + tolerance) + slackMillis)
+					regressions.add(String.format("%s %s %.2f ms, baseline %.2f ms", name, percentile, now, base));
+			}
+			String key = name + ".error.ratio";
+			if (baseline.getProperty(key) != null) {
+				double base = Double.parseDouble(baseline.getProperty(key));
+				double now = named.get(name).errorRatio();
+				if (now > base + ERROR_RATIO_SLACK)
+					regressions.add(String.format("%s error ratio %.4f, baseline %.4f", name, now, base));
+			}
+		}
+		return regressions;
+	}
+
+	private static double millis(Histogram latencies, double percentile) {
+		return latencies.getTotalCount() == 0L ? 0.0 : latencies.getValueAtPercentile(percentile) / 1e6;
+	}
+
+	private static final class Stats {
+		private final Histogram latencies = new ConcurrentHistogram(HIGHEST_TRACKABLE_NANOS, 3);
+		private final LongAdder errors = new LongAdder();
+
+		private long requests() {
+			return latencies.getTotalCount() + errors.sum();
+		}
+
+		private double errorRatio() {
+			long requests = requests();
+			return requests == 0L ? 0.0 : errors.sum() / (double) requests;
+		}
+	}
+}
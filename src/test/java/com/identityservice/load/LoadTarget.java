@@ -0,0 +1,104 @@
+package com.identityservice.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The running service as seen by the load generator: its base URL, the
+ * credentials to use and the users seeded before the run.
+ * 
+ * Requests go through HttpURLConnection, whose keep-alive cache reuses
+ * connections as long as http.maxConnections is at least the number of
+ * concurrent requests.
+ * 
+ */
+final class LoadTarget {
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	private static final int READ_TIMEOUT_MILLIS = 30000;
+
+	final String userCredentials;
+	final String adminCredentials;
+	private final String baseUrl;
+	private final String[] userNames;
+	private final long[] ids;
+	private final AtomicLong created = new AtomicLong();
+
+	LoadTarget(String baseUrl, String user, String admin, String[] userNames, long[] ids) {
+		this.baseUrl = baseUrl;
+		this.userCredentials = basic(user);
+		this.adminCredentials = basic(admin);
+		this.userNames = userNames;
+		this.ids = ids;
+	}
+
+	String userName(SplittableRandom random) {
+		return userNames[random.nextInt(userNames.length)];
+	}
+
+	long id(SplittableRandom random) {
+		return ids[random.nextInt(ids.length)];
+	}
+
+	long maxId() {
+		return ids[ids.length - 1];
+	}
+
+	/**
+	 * @return a userName no other request of this run uses
+	 */
+	String newUserName() {
+		return "load" + System.nanoTime() + "-" + created.incrementAndGet();
+	}
+
+	int get(String path, String credentials) throws IOException {
+		return request("GET", path, credentials, null);
+	}
+
+	/**
+	 * @param method
+	 * @param path
+	 * @param credentials Authorization header value
+	 * @param json        request body, or null
+	 * @return response status, after the whole response body has been read
+	 * @throws IOException
+	 */
+	int request(String method, String path, String credentials, String json) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+		connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+		connection.setRequestMethod(method);
+		connection.setRequestProperty("Authorization", credentials);
+		connection.setRequestProperty("Accept", "application/json");
+		if (json != null) {
+			byte[] body = json.getBytes(StandardCharsets.UTF_8);
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json");
+			connection.setFixedLengthStreamingMode(body.length);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body);
+			}
+		}
+		int status = connection.getResponseCode();
+		// Reading the body to the end lets the connection go back to the keep-alive cache.
+		try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) >= 0)
+					;
+			}
+		}
+		return status;
+	}
+
+	private static String basic(String credentials) {
+		return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,118 @@
+package com.identityservice.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.identityservice.dto.User;
+import com.identityservice.metrics.MetricsRegistry;
+import com.identityservice.persistence.InMemoryIdLeaseStore;
+import com.identityservice.persistence.NoOpUserJournal;
+import com.identityservice.service.IdAllocator;
+import com.identityservice.service.LookupExecutor;
+import com.identityservice.service.UserServiceImpl;
+
+/*
+ * Measures the heap the user store retains per user, as bytes of used heap
+ * after a full GC divided by the number of users:
+ * - the former layout, a User DTO per user in a by-userName and a by-id map;
+ * - the store as it is, holding compact records;
+ * - the JSON the store keeps for reads, after every user was read once; at
+ *   most loadtest.footprint.json-cache users keep theirs.
+ *
+ * The store must come out smaller than the DTO layout. Users look like ones
+ * created through the API: distinct names, a bcrypt-length password hash and
+ * the default email.
+ *
+ * Skipped unless loadtest.enabled is set, which the loadtest profile does. The
+ * default of 1M users needs a heap of about 2 GB:
+ * 	mvn -Ploadtest test -Dloadtest.tests=StoreFootprintTest -DargLine=-Xmx3g
+ *
+ */
+public class StoreFootprintTest {
+
+	public static final Logger logger = LoggerFactory.getLogger(StoreFootprintTest.class);
+
+	private static final boolean ENABLED = Boolean.getBoolean("loadtest.enabled");
+	private static final int USERS = Integer.getInteger("loadtest.footprint.users", 1_000_000);
+	/** identityservice.store.json-cache.max-entries; as many as users keeps the JSON of every user. */
+	private static final int JSON_CACHE_SIZE = Integer.getInteger("loadtest.footprint.json-cache", 100_000);
+	private static final int LOAD_BATCH = 10_000;
+
+	@BeforeClass
+	public static void requireEnabled() {
+		assumeTrue("store footprint measurement disabled, run with -Ploadtest", ENABLED);
+	}
+
+	@Test
+	public void recordsTakeLessHeapThanUserDtos() throws Exception {
+		long base = usedHeap();
+		Map<String, User> byUserName = new ConcurrentHashMap<>();
+		ConcurrentNavigableMap<Long, User> byId = new ConcurrentSkipListMap<>();
+		for (int i = 0; i < USERS; i++) {
+			User user = newUser(i);
+			user.setId((long) i + 1);
+			byUserName.put(user.getUserName(), user);
+			byId.put(user.getId(), user);
+		}
+		long dtoBytes = usedHeap() - base;
+		assertEquals(USERS, byUserName.size());
+		assertEquals(USERS, byId.size());
+		byUserName = null;
+		byId = null;
+
+		LookupExecutor lookupExecutor = new LookupExecutor(1, 1);
+		UserServiceImpl service = new UserServiceImpl("global", new NoOpUserJournal(), lookupExecutor,
+				new ObjectMapper(), new IdAllocator(new InMemoryIdLeaseStore(), 1000), new MetricsRegistry(), JSON_CACHE_SIZE);
+		service.deleteAllUsers();
+		base = usedHeap();
+		List<User> batch = new ArrayList<>(LOAD_BATCH);
+		for (int i = 0; i < USERS; i++) {
+			batch.add(newUser(i));
+			if (batch.size() == LOAD_BATCH || i == USERS - 1) {
+				service.saveNewUsers(batch);
+				batch.clear();
+			}
+		}
+		long recordBytes = usedHeap() - base;
+
+		for (int i = 0; i < USERS; i++)
+			assertNotNull(service.findUserJson("user" + i, null));
+		long jsonBytes = usedHeap() - base - recordBytes;
+		service.deleteAllUsers();
+		lookupExecutor.shutdown();
+
+		logger.info(String.format("%d users, bytes per user: User DTOs %d, records %d, rendered JSON kept for %d users %d",
+				USERS, dtoBytes / USERS, recordBytes / USERS, JSON_CACHE_SIZE, jsonBytes / USERS));
+		assertTrue("records are not smaller than User DTOs", recordBytes < dtoBytes);
+	}
+
+	private static User newUser(int i) {
+		return new User("First" + i, "Last" + i, "user" + i, String.format("{bcrypt}$2a$10$%053d", i));
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,137 @@
+package com.identityservice.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.identityservice.dto.AccessToken;
+import com.identityservice.dto.User;
+import com.identityservice.service.UserService;
+
+/*
+ * Compares request throughput of Basic authentication against bearer tokens
+ * on the same endpoint, after a warm-up of both.
+ * 
+ * Both authenticate a user created through the API, so its password is stored
+ * hashed at the configured cost, and the authentication cache is off: every
+ * Basic request verifies the hash, every bearer request only checks the token's
+ * signature. Bearer tokens must come out ahead.
+ * 
+ * Skipped unless loadtest.enabled is set, which the loadtest profile does:
+ * 	mvn -Ploadtest test -Dloadtest.tests=TokenAuthenticationBenchmarkTest
+ * 
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+		"identityservice.persistence.enabled=false", "identityservice.security.auth-cache.ttl-ms=0" })
+public class TokenAuthenticationBenchmarkTest {
+
+	public static final Logger logger = LoggerFactory.getLogger(TokenAuthenticationBenchmarkTest.class);
+
+	private static final String USER_NAME = "tokenbench";
+	private static final String PASSWORD = "tokenbench-password";
+
+	private static final boolean ENABLED = Boolean.getBoolean("loadtest.enabled");
+	/** Per authentication scheme. */
+	private static final int WARMUP_SECONDS = Integer.getInteger("loadtest.token.warmup-seconds", 5);
+	private static final int DURATION_SECONDS = Integer.getInteger("loadtest.token.duration-seconds", 10);
+
+	@Autowired
+	private TestRestTemplate restTemplate;
+
+	@Autowired
+	private UserService userService;
+
+	/** Runs before the application context is loaded, so a skipped benchmark costs nothing. */
+	@BeforeClass
+	public static void requireEnabled() {
+		assumeTrue("token benchmark disabled, run with -Ploadtest", ENABLED);
+	}
+
+	@Test
+	public void bearerTokensOutrunBasicAuthentication() throws Exception {
+		HttpHeaders admin = headers("Basic " + credentials("admin", "admin"));
+		assertEquals(HttpStatus.CREATED, restTemplate.exchange("/api/admin/user", HttpMethod.POST,
+				new HttpEntity<Object>(new User("Token", "Bench", USER_NAME, PASSWORD), admin), String.class)
+				.getStatusCode());
+		assertFalse("password was stored unhashed", storedPassword().startsWith("{noop}"));
+
+		HttpHeaders basic = headers("Basic " + credentials(USER_NAME, PASSWORD));
+		String token = restTemplate.exchange("/api/token", HttpMethod.POST, new HttpEntity<String>(basic),
+				AccessToken.class).getBody().getAccessToken();
+		HttpHeaders bearer = headers("Bearer " + token);
+
+		run(basic, WARMUP_SECONDS);
+		run(bearer, WARMUP_SECONDS);
+		double basicRate = run(basic, DURATION_SECONDS);
+		double bearerRate = run(bearer, DURATION_SECONDS);
+
+		logger.info("Basic auth with a hashed password: {} requests/s, bearer token: {} requests/s ({} s each)",
+				String.format("%.1f", basicRate), String.format("%.1f", bearerRate), DURATION_SECONDS);
+		assertTrue(String.format("bearer tokens (%.1f requests/s) not faster than Basic auth (%.1f requests/s)",
+				bearerRate, basicRate), bearerRate > basicRate);
+	}
+
+	/*
+	 * Requests /wiki/info back to back for the given time.
+	 */
+	private double run(HttpHeaders headers, int seconds) {
+		HttpEntity<String> request = new HttpEntity<String>(headers);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		long requests = 0L;
+		long now;
+		do {
+			HttpStatus status = restTemplate.exchange("/wiki/info", HttpMethod.GET, request, String.class)
+					.getStatusCode();
+			assertEquals(HttpStatus.OK, status);
+			requests++;
+			now = System.nanoTime();
+		} while (now < end);
+		return requests / (double) (now - start) * TimeUnit.SECONDS.toNanos(1);
+	}
+
+	private String storedPassword() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("admin", null,
+				AuthorityUtils.createAuthorityList("ROLE_ADMIN", "ROLE_USER")));
+		try {
+			return userService.findByUserName(USER_NAME).getPassword();
+		} finally {
+			SecurityContextHolder.clearContext();
+		}
+	}
+
+	private static HttpHeaders headers(String authorization) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.add("Authorization", authorization);
+		headers.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
+		return headers;
+	}
+
+	private static String credentials(String userName, String password) {
+		return new String(Base64.encodeBase64((userName + ":" + password).getBytes()));
+	}
+}
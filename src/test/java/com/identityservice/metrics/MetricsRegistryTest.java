@@ -0,0 +1,63 @@
+package com.identityservice.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void writesTimersAsSummariesInSeconds() {
+        MetricsRegistry registry = new MetricsRegistry();
+        LatencyTimer timer = registry.timer("op_seconds", "Op latency.", "op", "read");
+        for (int i = 1; i <= 1000; i++)
+            timer.record(TimeUnit.MICROSECONDS.toNanos(i));
+
+        String text = registry.scrape();
+        assertTrue(text.contains("# HELP op_seconds Op latency.\n# TYPE op_seconds summary\n"));
+        assertEquals(5.0e-4, sample(text, "op_seconds{op=\"read\",quantile=\"0.5\"}"), 1.0e-5);
+        assertEquals(9.9e-4, sample(text, "op_seconds{op=\"read\",quantile=\"0.99\"}"), 1.0e-5);
+        assertEquals(0.5005, sample(text, "op_seconds_sum{op=\"read\"}"), 1.0e-6);
+        assertEquals(1000.0, sample(text, "op_seconds_count{op=\"read\"}"), 0.0);
+
+        timer.record(TimeUnit.MICROSECONDS.toNanos(1));
+        assertEquals(1001.0, sample(registry.scrape(), "op_seconds_count{op=\"read\"}"), 0.0);
+    }
+
+    @Test
+    public void writesCountersAndGauges() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("errors_total", "Errors.", "endpoint", "a\"b").add(3L);
+        registry.gauge("depth", "Queue depth.", () -> 7L);
+
+        String text = registry.scrape();
+        assertTrue(text.contains("# TYPE errors_total counter\nerrors_total{endpoint=\"a\\\"b\"} 3\n"));
+        assertTrue(text.contains("# TYPE depth gauge\ndepth 7\n"));
+    }
+
+    @Test
+    public void reportsNoQuantilesBeforeTheFirstValue() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.timer("idle_seconds", "Idle.", null, null);
+
+        String text = registry.scrape();
+        assertTrue(text.contains("idle_seconds{quantile=\"0.5\"} NaN\n"));
+        assertTrue(text.contains("idle_seconds_count 0\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAFamilyOfAnotherType() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.gauge("depth", "Queue depth.", () -> 7L);
+        registry.counter("depth", "Queue depth.", null, null);
+    }
+
+    private static double sample(String text, String series) {
+        for (String line : text.split("\n"))
+            if (line.startsWith(series + " "))
+                return Double.parseDouble(line.substring(series.length() + 1));
+        throw new AssertionError(series + " missing from\n" + text);
+    }
+}
@@ -0,0 +1,230 @@
+package com.identityservice.persistence;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.identityservice.dto.Status;
+import com.identityservice.dto.User;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysCommittedRecordsInOrder() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        User user = user(1, "wfirstName", "wlastName", "wuserName", "wpassword").setStatus(Status.INACTIVE);
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.BATCH, 100L)) {
+            assertTrue(log.isEmpty());
+            log.append(JournalRecord.save(user)).join();
+            log.append(JournalRecord.delete(user.getId(), user.getUserName())).join();
+            log.append(JournalRecord.clear()).join();
+        }
+
+        List<JournalRecord> records = new ArrayList<>();
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.BATCH, 100L)) {
+            assertFalse(log.isEmpty());
+            log.replay(records::add);
+        }
+        assertEquals(3, records.size());
+        User replayed = records.get(0).getUser();
+        assertEquals(user.getId(), replayed.getId());
+        assertEquals("wuserName", replayed.getUserName());
+        assertEquals("wpassword", replayed.getPassword());
+        assertEquals(Status.INACTIVE, replayed.getStatus());
+        assertEquals(user.getCreateDate().getTimeInMillis(), replayed.getCreateDate().getTimeInMillis());
+        assertEquals(JournalRecord.Type.DELETE, records.get(1).getType());
+        assertEquals(JournalRecord.Type.CLEAR, records.get(2).getType());
+    }
+
+    @Test
+    public void appendedUserIsCapturedAtAppendTime() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        User user = user(2, "cfirstName", "clastName", "cuserName", "cpassword");
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.NONE, 100L)) {
+            CompletableFuture<Void> commit = log.append(JournalRecord.save(user));
+            user.setFirstName("changed");
+            commit.join();
+        }
+        List<JournalRecord> records = new ArrayList<>();
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.NONE, 100L)) {
+            log.replay(records::add);
+        }
+        assertEquals("cfirstName", records.get(0).getUser().getFirstName());
+    }
+
+    @Test
+    public void tornTailIsTruncatedOnOpen() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.BATCH, 100L)) {
+            log.append(JournalRecord.save(user(3, "tfirstName", "tlastName", "tuserName", "tpassword"))).join();
+        }
+        Path segment = WriteAheadLog.listSegments(dir).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.BATCH, 100L)) {
+            assertTrue(log.isEmpty());
+            log.append(JournalRecord.clear()).join();
+        }
+        List<JournalRecord> records = new ArrayList<>();
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.BATCH, 100L)) {
+            log.replay(records::add);
+        }
+        assertEquals(1, records.size());
+        assertEquals(JournalRecord.Type.CLEAR, records.get(0).getType());
+    }
+
+    @Test
+    public void concurrentAppendsAreAllCommitted() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        int appends = 500;
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.INTERVAL, 5L)) {
+            List<CompletableFuture<Void>> commits = new ArrayList<>();
+            for (int i = 0; i < appends; i++) {
+                final int n = i;
+                commits.add(CompletableFuture.supplyAsync(
+                        () -> log.append(JournalRecord.delete(n, "user" + n)), pool).thenCompose(c -> c));
+            }
+            CompletableFuture.allOf(commits.toArray(new CompletableFuture[0])).join();
+        } finally {
+            pool.shutdown();
+        }
+        List<JournalRecord> records = new ArrayList<>();
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.BATCH, 100L)) {
+            log.replay(records::add);
+        }
+        assertEquals(appends, records.size());
+    }
+
+    @Test
+    public void checkpointReplacesOlderSegments() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        User kept = user(4, "kfirstName", "klastName", "kuserName", "kpassword");
+        User later = user(5, "lfirstName", "llastName", "luserName", "lpassword");
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.BATCH, 100L)) {
+            log.append(JournalRecord.save(user(6, "gfirstName", "glastName", "guserName", "gpassword"))).join();
+            log.append(JournalRecord.save(kept)).join();
+            assertTrue(log.checkpoint(Collections.singletonList(kept)));
+            assertFalse(log.checkpoint(Collections.singletonList(kept)));
+            log.append(JournalRecord.save(later)).join();
+        }
+        assertEquals(1, WriteAheadLog.listSegments(dir).size());
+        assertEquals(1, SnapshotFile.list(dir).size());
+
+        List<JournalRecord> records = new ArrayList<>();
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.BATCH, 100L)) {
+            assertFalse(log.isEmpty());
+            log.replay(records::add);
+        }
+        assertEquals(3, records.size());
+        assertEquals(JournalRecord.Type.CLEAR, records.get(0).getType());
+        assertEquals("kuserName", records.get(1).getUser().getUserName());
+        assertEquals("luserName", records.get(2).getUser().getUserName());
+    }
+
+    @Test
+    public void snapshotPlusTailRecoversTheSameStore() throws Exception {
+        Path replayed = folder.newFolder("replayed").toPath();
+        Path snapshotted = folder.newFolder("snapshotted").toPath();
+        List<JournalRecord> head = new ArrayList<>();
+        Map<Long, User> state = new HashMap<>();
+        for (int i = 1; i <= 20; i++) {
+            head.add(JournalRecord.save(user(i, "first" + i, "last" + i, "user" + i, "password" + i)));
+            head.add(JournalRecord.save(user(i, "renamed" + i, "last" + i, "user" + i, "password" + i)));
+        }
+        head.add(JournalRecord.delete(3, "user3"));
+        head.forEach(record -> apply(state, record));
+        List<JournalRecord> tail = Arrays.asList(
+                JournalRecord.save(user(5, "tail5", "last5", "user5", "password5")),
+                JournalRecord.delete(7, "user7"),
+                JournalRecord.save(user(21, "first21", "last21", "user21", "password21")));
+
+        try (WriteAheadLog log = WriteAheadLog.open(replayed, Durability.NONE, 100L)) {
+            log.append(head).join();
+            log.append(tail).join();
+        }
+        try (WriteAheadLog log = WriteAheadLog.open(snapshotted, Durability.NONE, 100L)) {
+            log.append(head).join();
+            assertTrue(log.checkpoint(new ArrayList<>(state.values())));
+            log.append(tail).join();
+        }
+
+        Map<Long, String> fromReplay = recover(replayed);
+        assertEquals(19, fromReplay.size());
+        assertEquals("tail5 user5", fromReplay.get(5L));
+        assertFalse(fromReplay.containsKey(7L));
+        assertEquals(fromReplay, recover(snapshotted));
+    }
+
+    private static Map<Long, String> recover(Path dir) throws Exception {
+        Map<Long, User> users = new HashMap<>();
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.NONE, 100L)) {
+            log.replay(record -> apply(users, record));
+        }
+        Map<Long, String> names = new HashMap<>();
+        users.forEach((id, user) -> names.put(id, user.getFirstName() + " " + user.getUserName()));
+        return names;
+    }
+
+    private static void apply(Map<Long, User> users, JournalRecord record) {
+        switch (record.getType()) {
+        case SAVE:
+            users.put(record.getUser().getId(), record.getUser());
+            break;
+        case DELETE:
+            users.remove(record.getId());
+            break;
+        case CLEAR:
+            users.clear();
+            break;
+        }
+    }
+
+    @Test
+    public void appendAfterCloseFails() throws Exception {
+        WriteAheadLog log = WriteAheadLog.open(folder.getRoot().toPath(), Durability.BATCH, 100L);
+        log.close();
+        assertTrue(log.append(JournalRecord.clear()).isCompletedExceptionally());
+    }
+
+    @Test
+    public void directoryCanBeOpenedByOneLogAtATime() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (WriteAheadLog log = WriteAheadLog.open(dir, Durability.BATCH, 100L)) {
+            try {
+                WriteAheadLog.open(dir, Durability.BATCH, 100L).close();
+                fail("Second log opened on a locked directory");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("in use"));
+            }
+        }
+        WriteAheadLog.open(dir, Durability.BATCH, 100L).close();
+    }
+
+    private static User user(long id, String firstName, String lastName, String userName, String password) {
+        User user = new User(firstName, lastName, userName, password);
+        user.setId(id);
+        return user;
+    }
+}
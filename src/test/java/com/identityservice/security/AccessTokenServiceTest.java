@@ -0,0 +1,64 @@
+package com.identityservice.security;
+
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.User;
+
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class AccessTokenServiceTest {
+
+    private static final String SECRET = Base64.getEncoder().encodeToString(new byte[32]);
+
+    @Test
+    public void verifiesIssuedToken() throws Exception {
+        AccessTokenService tokens = new AccessTokenService("", 60);
+
+        Authentication verified = tokens.verify(tokens.issue(login("zoe", "ROLE_USER", "ROLE_ADMIN")));
+
+        assertEquals("zoe", verified.getName());
+        assertTrue(verified.isAuthenticated());
+        assertEquals(AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN"), verified.getAuthorities());
+        assertTrue(verified.getPrincipal() instanceof User);
+    }
+
+    @Test
+    public void rejectsTamperedForeignAndExpiredTokens() throws Exception {
+        AccessTokenService tokens = new AccessTokenService(SECRET, 60);
+        String token = tokens.issue(login("zoe", "ROLE_USER"));
+        String forged = tokens.issue(login("admin", "ROLE_ADMIN"));
+
+        assertNull(tokens.verify(token.substring(0, token.indexOf('.')) + forged.substring(forged.indexOf('.'))));
+        assertNull(tokens.verify("garbage"));
+        assertNull(new AccessTokenService("", 60).verify(token));
+        assertNotNull(new AccessTokenService(SECRET, 60).verify(token));
+        assertNull(tokens.verify(new AccessTokenService(SECRET, 0).issue(login("zoe", "ROLE_USER"))));
+    }
+
+    @Test
+    public void revocationRejectsEarlierTokensOnly() throws Exception {
+        AccessTokenService tokens = new AccessTokenService("", 60);
+        String before = tokens.issue(login("zoe", "ROLE_USER"));
+        String other = tokens.issue(login("max", "ROLE_USER"));
+
+        tokens.revoke("zoe");
+        Thread.sleep(2);
+        String after = tokens.issue(login("zoe", "ROLE_USER"));
+
+        assertNull(tokens.verify(before));
+        assertNotNull(tokens.verify(other));
+        assertNotNull(tokens.verify(after));
+
+        tokens.revokeAll();
+        assertNull(tokens.verify(other));
+        assertEquals(0, tokens.revokedCount());
+    }
+
+    private static Authentication login(String userName, String... roles) {
+        return new UsernamePasswordAuthenticationToken(userName, null, AuthorityUtils.createAuthorityList(roles));
+    }
+}
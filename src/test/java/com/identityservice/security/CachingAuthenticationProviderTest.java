@@ -0,0 +1,94 @@
+package com.identityservice.security;
+
+import org.junit.Test;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CachingAuthenticationProviderTest {
+
+    private final AtomicInteger delegateCalls = new AtomicInteger();
+
+    /* Accepts any password equal to the userName. */
+    private final AuthenticationManager delegate = authentication -> {
+        delegateCalls.incrementAndGet();
+        if (!authentication.getName().equals(authentication.getCredentials()))
+            throw new BadCredentialsException("Bad credentials");
+        return new UsernamePasswordAuthenticationToken(authentication.getName(), null,
+                AuthorityUtils.createAuthorityList("ROLE_USER"));
+    };
+
+    @Test
+    public void repeatAuthenticationSkipsDelegate() throws Exception {
+        CachingAuthenticationProvider provider = new CachingAuthenticationProvider(new AuthenticationCache(60000, 100), delegate);
+
+        provider.authenticate(token("zoe", "zoe"));
+        Authentication second = provider.authenticate(token("zoe", "zoe"));
+
+        assertEquals(1, delegateCalls.get());
+        assertEquals("zoe", second.getName());
+        assertTrue(second.isAuthenticated());
+        assertNull(second.getCredentials());
+    }
+
+    @Test
+    public void wrongPasswordIsNotAnsweredFromCache() throws Exception {
+        CachingAuthenticationProvider provider = new CachingAuthenticationProvider(new AuthenticationCache(60000, 100), delegate);
+        provider.authenticate(token("zoe", "zoe"));
+
+        try {
+            provider.authenticate(token("zoe", "guess"));
+            fail("expected bad credentials");
+        } catch (BadCredentialsException e) {
+            assertEquals(2, delegateCalls.get());
+        }
+    }
+
+    @Test
+    public void invalidateForcesReauthentication() throws Exception {
+        AuthenticationCache cache = new AuthenticationCache(60000, 100);
+        CachingAuthenticationProvider provider = new CachingAuthenticationProvider(cache, delegate);
+        provider.authenticate(token("zoe", "zoe"));
+        provider.authenticate(token("max", "max"));
+
+        cache.invalidate("zoe");
+        provider.authenticate(token("zoe", "zoe"));
+        provider.authenticate(token("max", "max"));
+
+        assertEquals(3, delegateCalls.get());
+    }
+
+    @Test
+    public void authenticationInFlightDuringInvalidationIsNotCached() throws Exception {
+        AuthenticationCache cache = new AuthenticationCache(60000, 100);
+        long epoch = cache.epoch();
+        cache.invalidate("zoe");
+
+        cache.put("zoe", "zoe", "zoe", AuthorityUtils.createAuthorityList("ROLE_USER"), epoch);
+
+        assertNull(cache.get("zoe", "zoe"));
+    }
+
+    @Test
+    public void entriesExpireAndStayBounded() throws Exception {
+        AuthenticationCache expiring = new AuthenticationCache(1, 100);
+        expiring.put("zoe", "zoe", "zoe", AuthorityUtils.createAuthorityList("ROLE_USER"), expiring.epoch());
+        Thread.sleep(5);
+        assertNull(expiring.get("zoe", "zoe"));
+
+        AuthenticationCache bounded = new AuthenticationCache(60000, 100);
+        for (int i = 0; i < 1000; i++)
+            bounded.put("user" + i, "pw", "user" + i, AuthorityUtils.createAuthorityList("ROLE_USER"), bounded.epoch());
+        assertTrue(bounded.size() <= 100);
+    }
+
+    private static UsernamePasswordAuthenticationToken token(String userName, String password) {
+        return new UsernamePasswordAuthenticationToken(userName, password);
+    }
+}
@@ -0,0 +1,126 @@
+package com.identityservice.security;
+
+import org.junit.Test;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PasswordHashingTest {
+
+    @Test
+    public void encodesAndMatchesPerAlgorithm() throws Exception {
+        for (PasswordHashing hashing : Arrays.asList(new PasswordHashing("bcrypt", 4, 100, 2, 8),
+                new PasswordHashing("pbkdf2", 1000, 100, 2, 8), new PasswordHashing("noop", 0, 100, 2, 8))) {
+            String encoded = hashing.encode("secret");
+            assertTrue(encoded, encoded.startsWith("{" + hashing.getAlgorithm()));
+            assertTrue(hashing.matches("secret", encoded));
+            assertFalse(hashing.matches("guess", encoded));
+            assertFalse(hashing.needsRehash(encoded));
+            hashing.shutdown();
+        }
+    }
+
+    @Test
+    public void outdatedHashesNeedRehash() throws Exception {
+        PasswordHashing weak = new PasswordHashing("bcrypt", 4, 100, 1, 8);
+        PasswordHashing strong = new PasswordHashing("bcrypt", 5, 100, 1, 8);
+        String weakHash = weak.encode("secret");
+
+        assertTrue(strong.needsRehash(weakHash));
+        assertTrue(strong.matches("secret", weakHash));
+        assertTrue(strong.needsRehash("secret"));
+        assertTrue(strong.matches("secret", "secret"));
+        assertTrue(strong.needsRehash("{noop}secret"));
+        assertTrue(new PasswordHashing("pbkdf2", 2000, 100, 1, 8).needsRehash(new PasswordHashing("pbkdf2", 1000, 100, 1, 8).encode("secret")));
+    }
+
+    @Test
+    public void calibrationNeverGoesBelowTheFloor() throws Exception {
+        assertEquals(10, new PasswordHashing("bcrypt", 0, 1, 1, 8).getCost());
+        assertEquals(10_000, new PasswordHashing("pbkdf2", 0, 1, 1, 8).getCost());
+    }
+
+    @Test
+    public void saturatedPoolRejectsRequestsButNotBulkWork() throws Exception {
+        PasswordHashing hashing = new PasswordHashing("bcrypt", 4, 100, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        hashing.submit(() -> release.await(10, TimeUnit.SECONDS), false);
+        hashing.submit(() -> release.await(10, TimeUnit.SECONDS), false);
+
+        try {
+            hashing.encode("secret");
+            fail("expected rejection");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, hashing.getRejected());
+        }
+        try {
+            hashing.matches("secret", "{bcrypt}$2a$04$abcdefghijklmnopqrstuu");
+            fail("expected rejection");
+        } catch (AuthenticationServiceException e) {
+            assertEquals(2, hashing.getRejected());
+        }
+
+        release.countDown();
+        List<String> encoded = hashing.encodeAll(Arrays.asList("a", "b", "c", "d"));
+        assertTrue(hashing.matches("c", encoded.get(2)));
+        assertEquals(0, hashing.getPending());
+    }
+
+    @Test
+    public void plaintextEncoderNeverUsesThePool() throws Exception {
+        PasswordHashing hashing = new PasswordHashing("bcrypt", 4, 100, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        hashing.submit(() -> release.await(10, TimeUnit.SECONDS), false);
+        hashing.submit(() -> release.await(10, TimeUnit.SECONDS), false);
+        DaoAuthenticationProvider provider = new DaoAuthenticationProvider();
+        provider.setPasswordEncoder(hashing.plaintext());
+        provider.setUserDetailsService(userName -> {
+            if (!"admin".equals(userName))
+                throw new UsernameNotFoundException(userName);
+            return User.withUsername("admin").password("{noop}admin").roles("ADMIN").build();
+        });
+
+        assertTrue(provider.authenticate(new UsernamePasswordAuthenticationToken("admin", "admin")).isAuthenticated());
+        try {
+            provider.authenticate(new UsernamePasswordAuthenticationToken("stored", "secret"));
+            fail("expected bad credentials");
+        } catch (BadCredentialsException e) {
+            assertEquals(0, hashing.getRejected());
+        }
+        release.countDown();
+        assertFalse(hashing.plaintext().matches("secret", "{bcrypt}$2a$04$abcdefghijklmnopqrstuu"));
+    }
+
+    @Test
+    public void loginRehashesOutdatedPassword() throws Exception {
+        PasswordHashing hashing = new PasswordHashing("bcrypt", 4, 100, 1, 8);
+        CountDownLatch upgraded = new CountDownLatch(1);
+        String[] stored = { "secret" };
+        RehashingDaoAuthenticationProvider provider = new RehashingDaoAuthenticationProvider(hashing,
+                (userName, currentHash, newHash) -> {
+                    assertEquals(stored[0], currentHash);
+                    stored[0] = newHash;
+                    upgraded.countDown();
+                    return true;
+                });
+        provider.setUserDetailsService(userName -> User.withUsername("zoe").password(stored[0]).roles("USER").build());
+
+        provider.authenticate(new UsernamePasswordAuthenticationToken("zoe", "secret"));
+
+        assertTrue(upgraded.await(10, TimeUnit.SECONDS));
+        assertTrue(stored[0].startsWith("{bcrypt}"));
+        assertFalse(hashing.needsRehash(stored[0]));
+        assertTrue(provider.authenticate(new UsernamePasswordAuthenticationToken("zoe", "secret")).isAuthenticated());
+    }
+}
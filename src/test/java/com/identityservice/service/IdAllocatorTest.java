@@ -0,0 +1,58 @@
+package com.identityservice.service;
+
+import com.identityservice.persistence.FileIdLeaseStore;
+import com.identityservice.persistence.InMemoryIdLeaseStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IdAllocatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void concurrentAllocationsAreUnique() throws Exception {
+        IdAllocator allocator = new IdAllocator(new InMemoryIdLeaseStore(), 10);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++)
+            pool.execute(() -> {
+                for (int i = 0; i < 1000; i++)
+                    ids.add(allocator.next());
+            });
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(4000, ids.size());
+    }
+
+    @Test
+    public void advancePastSkipsRecoveredIds() throws Exception {
+        IdAllocator allocator = new IdAllocator(new InMemoryIdLeaseStore(), 10);
+        assertEquals(1L, allocator.next());
+        allocator.advancePast(500L);
+        assertEquals(501L, allocator.next());
+        allocator.advancePast(100L);
+        assertEquals(502L, allocator.next());
+    }
+
+    @Test
+    public void fileLeasesSurviveRestartsAndAreDisjointBetweenInstances() throws Exception {
+        IdAllocator first = new IdAllocator(FileIdLeaseStore.open(folder.getRoot().toPath()), 100);
+        IdAllocator second = new IdAllocator(FileIdLeaseStore.open(folder.getRoot().toPath()), 100);
+        assertEquals(1L, first.next());
+        assertEquals(101L, second.next());
+        assertEquals(2L, first.next());
+
+        IdAllocator restarted = new IdAllocator(FileIdLeaseStore.open(folder.getRoot().toPath()), 100);
+        assertEquals(201L, restarted.next());
+    }
+}
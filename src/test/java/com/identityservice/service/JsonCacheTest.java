@@ -0,0 +1,43 @@
+package com.identityservice.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.identityservice.dto.User;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JsonCacheTest {
+
+    @Test
+    public void rendersOncePerVersion() throws Exception {
+        JsonCache cache = new JsonCache(new ObjectMapper(), 10);
+        UserRecord record = record(1, "first");
+
+        byte[] json = cache.render(record);
+        assertSame(json, cache.render(record));
+        assertSame(json, cache.render(record.withVersion(1L)));
+
+        byte[] changed = cache.render(record(1, "changed").withVersion(2L));
+        assertTrue(new String(changed, "UTF-8").contains("\"firstName\":\"changed\""));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void staysWithinMaxEntries() throws Exception {
+        JsonCache cache = new JsonCache(new ObjectMapper(), 10);
+        for (int i = 1; i <= 100; i++)
+            assertNotNull(cache.render(record(i, "first" + i)));
+        assertTrue(cache.size() <= 10);
+
+        JsonCache disabled = new JsonCache(new ObjectMapper(), 0);
+        UserRecord record = record(1, "first");
+        assertArrayEquals(disabled.render(record), disabled.render(record));
+        assertEquals(0, disabled.size());
+    }
+
+    private static UserRecord record(long id, String firstName) {
+        User user = new User(firstName, "last", "user" + id, "password");
+        user.setId(id);
+        return UserRecord.from(user, 1L);
+    }
+}
@@ -0,0 +1,142 @@
+package com.identityservice.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LookupExecutorTest {
+
+    @Test
+    public void rejectsOnceQueueIsFull() throws Exception {
+        LookupExecutor executor = new LookupExecutor(1, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute(() -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.execute(() -> awaitQuietly(release));
+            executor.execute(() -> awaitQuietly(release));
+
+            assertEquals(1, executor.getActiveThreads());
+            assertEquals(2, executor.getQueueDepth());
+            try {
+                executor.execute(() -> { });
+                fail("expected the full queue to reject the lookup");
+            } catch (RejectedExecutionException e) {
+                assertEquals(1, executor.getRejectedLookups());
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void runsLookupsOnNamedThreads() throws Exception {
+        LookupExecutor executor = new LookupExecutor(2, 10);
+        CountDownLatch done = new CountDownLatch(1);
+        String[] threadName = new String[1];
+        try {
+            executor.execute(() -> {
+                threadName[0] = Thread.currentThread().getName();
+                done.countDown();
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(threadName[0].startsWith("identity-lookup-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void delayedLookupsDoNotHoldPoolThreads() throws Exception {
+        int lookups = 5000;
+        LookupExecutor executor = new LookupExecutor(1, lookups);
+        List<CompletableFuture<Integer>> results = new ArrayList<>(lookups);
+        try {
+            for (int i = 0; i < lookups; i++) {
+                int value = i;
+                results.add(executor.supplyDelayed(() -> value, 200));
+            }
+            assertEquals(0, executor.getActiveThreads());
+            assertEquals(0, executor.getRejectedLookups());
+
+            for (int i = 0; i < lookups; i++)
+                assertEquals(Integer.valueOf(i), results.get(i).get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void delayedLookupsRunOnThePool() throws Exception {
+        LookupExecutor executor = new LookupExecutor(1, 1);
+        try {
+            String threadName = executor.supplyDelayed(() -> Thread.currentThread().getName(), 10)
+                    .get(5, TimeUnit.SECONDS);
+            assertTrue(threadName.startsWith("identity-lookup-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void delayedLookupIsRejectedWhenTheQueueIsFullOnceDue() throws Exception {
+        LookupExecutor executor = new LookupExecutor(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute(() -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.execute(() -> awaitQuietly(release));
+
+            CompletableFuture<String> result = executor.supplyDelayed(() -> "late", 10);
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("expected the full queue to reject the delayed lookup");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+                assertEquals(1, executor.getRejectedLookups());
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void cancellingDelayedLookupDropsItsTimer() throws Exception {
+        LookupExecutor executor = new LookupExecutor(1, 1);
+        try {
+            CompletableFuture<String> result = executor.supplyDelayed(() -> "late", TimeUnit.MINUTES.toMillis(10));
+            assertEquals(1, executor.getPendingDelayedLookups());
+
+            result.cancel(false);
+            assertEquals(0, executor.getPendingDelayedLookups());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
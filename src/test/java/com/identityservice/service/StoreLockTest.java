@@ -0,0 +1,85 @@
+package com.identityservice.service;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StoreLockTest {
+
+    private static final int THREADS = 8;
+    private static final int INCREMENTS = 2000;
+
+    @Test
+    public void globalWriteKeyIsExclusivePerKey() throws Exception {
+        assertEquals(THREADS * INCREMENTS, incrementConcurrently(StoreLock.forMode("global")));
+    }
+
+    @Test
+    public void stripedWriteKeyIsExclusivePerKey() throws Exception {
+        assertEquals(THREADS * INCREMENTS, incrementConcurrently(StoreLock.forMode("striped")));
+    }
+
+    @Test
+    public void stripedWriteAllExcludesKeyWriters() throws Exception {
+        StoreLock lock = StoreLock.forMode("striped");
+        AtomicBoolean inWriteAll = new AtomicBoolean();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            pool.execute(() -> {
+                for (int i = 0; i < INCREMENTS; i++) {
+                    if (thread == 0 && i % 100 == 0) {
+                        lock.writeAll(() -> {
+                            inWriteAll.set(true);
+                            Thread.yield();
+                            inWriteAll.set(false);
+                            return null;
+                        });
+                    } else {
+                        lock.writeKey("key" + i, () -> {
+                            if (inWriteAll.get())
+                                overlapped.set(true);
+                            return null;
+                        });
+                    }
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertFalse(overlapped.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownModeIsRejected() {
+        StoreLock.forMode("lockless");
+    }
+
+    private int incrementConcurrently(StoreLock lock) throws InterruptedException {
+        Map<String, Integer> counters = new HashMap<>();
+        counters.put("a", 0);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            pool.execute(() -> {
+                for (int i = 0; i < INCREMENTS; i++)
+                    lock.writeKey("a", () -> counters.put("a", counters.get("a") + 1));
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        pool.shutdown();
+        return lock.readAll(() -> counters.get("a"));
+    }
+}
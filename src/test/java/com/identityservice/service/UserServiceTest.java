@@ -1,15 +1,35 @@
 package com.identityservice.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.identityservice.dto.Status;
 import com.identityservice.dto.User;
+import com.identityservice.dto.UserField;
+import com.identityservice.exception.InvalidFieldsException;
+import com.identityservice.exception.UserVersionConflictException;
+import com.identityservice.metrics.MetricsRegistry;
+import com.identityservice.persistence.EncodedRecords;
+import com.identityservice.persistence.InMemoryIdLeaseStore;
+import com.identityservice.persistence.JournalRecord;
+import com.identityservice.persistence.NoOpUserJournal;
+import com.identityservice.security.PasswordUpgradeService;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.context.annotation.Bean;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -36,6 +56,19 @@ public class UserServiceTest {
         assertEquals("mdoe", userService.findById(id).getUserName());
     }
 
+    @Test
+    public void findByIdFollowsReplaceAndDelete() throws Exception {
+        User first = new User("ifirstName", "ilastName", "iuserName", "ipassword");
+        userService.saveUser(first);
+        User second = new User("ifirstName2", "ilastName2", "iuserName", "ipassword2");
+        userService.saveUser(second);
+        assertNull(userService.findById(first.getId()));
+        assertEquals("ifirstName2", userService.findById(second.getId()).getFirstName());
+        userService.deleteUserById(second.getId());
+        assertNull(userService.findById(second.getId()));
+        assertNull(userService.findByUserName("iuserName"));
+    }
+
     @Test
     public void findByUserName() throws Exception {
         User user = new User("ffirstName", "flastName", "fuserName", "fpassword");
@@ -43,6 +76,17 @@ public class UserServiceTest {
         assertEquals("ffirstName", userService.findByUserName("fuserName").getFirstName());
     }
 
+    @Test
+    public void findByUserNames() throws Exception {
+        userService.saveUser(new User("mfirstName", "mlastName", "muserNameA", "mpassword"));
+        userService.saveUser(new User("mfirstName", "mlastName", "muserNameB", "mpassword"));
+
+        Map<String, User> found = userService.findByUserNames(Arrays.asList("muserNameB", "missing", "muserNameA"));
+
+        assertEquals(Arrays.asList("muserNameB", "muserNameA"), new ArrayList<>(found.keySet()));
+        assertEquals("muserNameA", found.get("muserNameA").getUserName());
+    }
+
     @Test
     public void findByUserNameAsync() throws Exception {
         User user = new User("afirstName", "alastName", "auserName", "apassword");
@@ -50,6 +94,16 @@ public class UserServiceTest {
         assertEquals("afirstName", userService.findByUserNameAsync("auserName").get().getFirstName());
     }
 
+    @Test
+    public void returnedUserIsDetachedFromStore() throws Exception {
+        User user = new User("rfirstName", "rlastName", "ruserName", "rpassword");
+        userService.saveUser(user);
+        userService.findByUserName("ruserName").setFirstName("changed");
+        user.setFirstName("changedToo");
+        assertEquals("rfirstName", userService.findByUserName("ruserName").getFirstName());
+        assertEquals("ruserName@identityservice.com", userService.findByUserName("ruserName").getEmail());
+    }
+
     @Test
     public void saveUser() throws Exception {
         User user = new User("firstName", "lastName", "userName", "password");
@@ -57,6 +111,178 @@ public class UserServiceTest {
         assertEquals("firstName", userService.findByUserName("userName").getFirstName());
     }
 
+    @Test
+    public void saveNewUsersSkipsExistingUserNames() throws Exception {
+        User existing = new User("bfirstName", "blastName", "buserNameA", "bpassword");
+        userService.saveUser(existing);
+        User replacement = new User("changed", "changed", "buserNameA", "bpassword");
+        User fresh = new User("bfirstName", "blastName", "buserNameB", "bpassword");
+        User duplicate = new User("other", "other", "buserNameB", "bpassword");
+
+        List<Boolean> created = userService.saveNewUsers(Arrays.asList(replacement, fresh, duplicate));
+
+        assertEquals(Arrays.asList(false, true, false), created);
+        assertEquals("bfirstName", userService.findByUserName("buserNameA").getFirstName());
+        assertEquals("bfirstName", userService.findByUserName("buserNameB").getFirstName());
+    }
+
+    @Test
+    public void failedEncodeLeavesTheStoreUntouched() throws Exception {
+        UserService refusing = new UserServiceImpl("global", new NoOpUserJournal() {
+            @Override
+            public EncodedRecords encode(List<JournalRecord> records) {
+                throw new UncheckedIOException(new IOException("record too large"));
+            }
+        }, new LookupExecutor(1, 10), new ObjectMapper(), new IdAllocator(new InMemoryIdLeaseStore(), 10),
+                new MetricsRegistry(), 10);
+        User kept = new User("efirstName", "elastName", "euserNameA", "epassword");
+        userService.saveUser(kept);
+        User first = new User("efirstName", "elastName", "euserNameB", "epassword");
+        User second = new User("efirstName", "elastName", "euserNameC", "epassword");
+        long storeVersion = userService.findStoreVersion();
+
+        try {
+            refusing.saveNewUsers(Arrays.asList(first, second));
+            fail("encode failure should fail the batch");
+        } catch (UncheckedIOException expected) {
+        }
+        try {
+            refusing.deleteUserById(kept.getId());
+            fail("encode failure should fail the delete");
+        } catch (UncheckedIOException expected) {
+        }
+
+        assertNull(userService.findByUserName("euserNameB"));
+        assertNull(userService.findByUserName("euserNameC"));
+        assertEquals("efirstName", userService.findById(kept.getId()).getFirstName());
+        assertEquals(storeVersion, userService.findStoreVersion());
+    }
+
+    @Test
+    public void loadUserByUsernameReadsTheStore() throws Exception {
+        User user = new User("lfirstName", "llastName", "luserName", "lpassword");
+        userService.saveUser(user);
+        UserDetailsService userDetailsService = (UserDetailsService) userService;
+
+        UserDetails details = userDetailsService.loadUserByUsername("luserName");
+        assertEquals("lpassword", details.getPassword());
+        assertTrue(details.isEnabled());
+        assertTrue(AuthorityUtils.authorityListToSet(details.getAuthorities()).contains("ROLE_USER"));
+
+        User inactive = userService.findByUserName("luserName");
+        inactive.setStatus(Status.INACTIVE);
+        userService.updateUser(inactive);
+        assertFalse(userDetailsService.loadUserByUsername("luserName").isEnabled());
+
+        userService.deleteUserById(inactive.getId());
+        try {
+            userDetailsService.loadUserByUsername("luserName");
+            fail("expected a deleted user to be unknown");
+        } catch (UsernameNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void upgradePasswordOnlyReplacesTheExpectedHash() throws Exception {
+        User user = new User("pfirstName", "plastName", "puserName", "{noop}old");
+        userService.saveUser(user);
+        PasswordUpgradeService upgradeService = (PasswordUpgradeService) userService;
+
+        assertFalse(upgradeService.upgradePassword("puserName", "{noop}stale", "{noop}new"));
+        assertEquals("{noop}old", userService.findByUserName("puserName").getPassword());
+        assertTrue(upgradeService.upgradePassword("puserName", "{noop}old", "{noop}new"));
+        assertEquals("{noop}new", userService.findByUserName("puserName").getPassword());
+        assertFalse(upgradeService.upgradePassword("nobody", "{noop}old", "{noop}new"));
+
+        userService.deleteUserById(user.getId());
+    }
+
+    @Test
+    public void versionsChangeOnEveryWrite() throws Exception {
+        User user = new User("vfirstName", "vlastName", "vuserName", "vpassword");
+        userService.saveUser(user);
+        long created = userService.findUserVersion("vuserName");
+        long page = userService.findUsersPageVersion(user.getId() - 1, 1);
+        long store = userService.findStoreVersion();
+        assertEquals(created, userService.findByUserName("vuserName").getVersion());
+        assertEquals(page, userService.findUsersPageVersion(user.getId() - 1, 1));
+        assertEquals(store, userService.findStoreVersion());
+
+        userService.updateUser(userService.findByUserName("vuserName").setLastName("vchanged"));
+        assertTrue(userService.findUserVersion("vuserName") > created);
+        assertNotEquals(page, userService.findUsersPageVersion(user.getId() - 1, 1));
+        assertNotEquals(store, userService.findStoreVersion());
+
+        store = userService.findStoreVersion();
+        userService.deleteUserById(user.getId());
+        assertEquals(0L, userService.findUserVersion("vuserName"));
+        assertNotEquals(store, userService.findStoreVersion());
+    }
+
+    @Test
+    public void versionedUpdateRejectsStaleVersion() throws Exception {
+        User user = new User("cfirstName", "clastName", "casUserName", "cpassword");
+        userService.saveUser(user);
+        User first = userService.findByUserName("casUserName");
+        User second = userService.findByUserName("casUserName");
+
+        userService.updateUser(first.setLastName("first"), first.getVersion());
+        try {
+            userService.updateUser(second.setLastName("second"), second.getVersion());
+            fail("expected a version conflict");
+        } catch (UserVersionConflictException e) {
+            assertEquals(first.getVersion(), e.getCurrentVersion());
+        }
+        assertEquals("first", userService.findByUserName("casUserName").getLastName());
+
+        userService.deleteUserById(user.getId());
+        try {
+            userService.updateUser(first, first.getVersion());
+            fail("expected a version conflict");
+        } catch (UserVersionConflictException e) {
+            assertEquals(0L, e.getCurrentVersion());
+        }
+    }
+
+    @Test
+    public void jsonIsRenderedOncePerVersion() throws Exception {
+        User user = new User("jfirstName", "jlastName", "juserName", "jpassword");
+        userService.saveUser(user);
+
+        byte[] json = userService.findUserJson("juserName", null);
+        assertSame(json, userService.findUserJson("juserName", null));
+        assertSame(json, userService.findUsersPageJson(user.getId() - 1, 1, null).get(user.getId()));
+        assertTrue(new String(json, "UTF-8").contains("\"lastName\":\"jlastName\""));
+
+        userService.updateUser(userService.findByUserName("juserName").setLastName("jchanged"));
+        assertTrue(new String(userService.findUserJson("juserName", null), "UTF-8").contains("\"lastName\":\"jchanged\""));
+
+        userService.deleteUserById(user.getId());
+        assertNull(userService.findUserJson("juserName", null));
+    }
+
+    @Test
+    public void projectionWritesOnlySelectedFields() throws Exception {
+        User user = new User("pjfirstName", "pjlastName", "pjuserName", "pjpassword");
+        userService.saveUser(user);
+
+        byte[] json = userService.findUserJson("pjuserName", UserField.parse("status, userName,email"));
+        assertEquals("{\"userName\":\"pjuserName\",\"email\":\"pjuserName@identityservice.com\",\"status\":\"ACTIVE\"}",
+                new String(json, "UTF-8"));
+        String full = new String(userService.findUserJson("pjuserName", null), "UTF-8");
+        String dates = new String(userService.findUserJson("pjuserName", UserField.parse("createDate")), "UTF-8");
+        assertTrue(full.contains(dates.substring(1, dates.length() - 1)));
+
+        try {
+            UserField.parse("userName,secret");
+            fail("expected an unknown field");
+        } catch (InvalidFieldsException e) {
+            // expected
+        }
+        userService.deleteUserById(user.getId());
+    }
+
     @Test
     public void updateUser() throws Exception {
         User user = new User("ufirstName", "ulastName", "uuserName", "upassword");
@@ -71,8 +297,20 @@ public class UserServiceTest {
         User user = new User("dfirstName", "dlastName", "duserName", "dpassword");
         userService.saveUser(user);
         assertEquals("dfirstName", userService.findByUserName("duserName").getFirstName());
-        userService.deleteUserById(user.getId());
+        assertTrue(userService.deleteUserById(user.getId()));
         assertTrue(userService.findByUserName("duserName") == null);
+        assertFalse(userService.deleteUserById(user.getId()));
+    }
+
+    @Test
+    public void deleteUserByIdAfterUpdate() throws Exception {
+        User user = new User("dfirstName", "dlastName", "duduserName", "dpassword");
+        userService.saveUser(user);
+        long id = user.getId();
+        userService.updateUser(userService.findByUserName("duduserName").setFirstName("updated"));
+        assertTrue(userService.deleteUserById(id));
+        assertNull(userService.findById(id));
+        assertNull(userService.findByUserName("duduserName"));
     }
 
     @Test
@@ -81,6 +319,22 @@ public class UserServiceTest {
         assertTrue(users.size() > 0);
     }
 
+    @Test
+    public void findUsersPage() throws Exception {
+        User a = new User("pfirstName", "plastName", "puserNameA", "ppassword");
+        User b = new User("pfirstName", "plastName", "puserNameB", "ppassword");
+        User c = new User("pfirstName", "plastName", "puserNameC", "ppassword");
+        userService.saveUser(a);
+        userService.saveUser(b);
+        userService.saveUser(c);
+        List<User> first = userService.findUsersPage(a.getId() - 1, 2);
+        assertEquals(2, first.size());
+        assertEquals("puserNameA", first.get(0).getUserName());
+        assertEquals("puserNameB", first.get(1).getUserName());
+        List<User> second = userService.findUsersPage(first.get(1).getId(), 2);
+        assertEquals("puserNameC", second.get(0).getUserName());
+    }
+
     @Test
     public void deleteAllUsers() throws Exception {
         userService.deleteAllUsers();